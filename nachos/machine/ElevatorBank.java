@@ -9,6 +9,7 @@ import nachos.threads.Semaphore;
 import java.util.Vector;
 import java.util.LinkedList;
 import java.util.Iterator;
+import java.util.Arrays;
 
 /**
  * A bank of elevators.
@@ -107,6 +108,12 @@ public final class ElevatorBank implements Runnable {
 	riders = new RiderState[numRiders];
 	ridersVector.toArray(riders);
 
+	ridersOnFloor = new FloorRiders[numFloors];
+	for (int floor=0; floor<numFloors; floor++)
+	    ridersOnFloor[floor] = new FloorRiders();
+	for (int i=0; i<numRiders; i++)
+	    ridersOnFloor[riders[i].floor].add(riders[i]);
+
 	if (enableGui) {
 	    privilege.doPrivileged(new Runnable() {
 		public void run() { initGui(); }
@@ -154,14 +161,47 @@ public final class ElevatorBank implements Runnable {
 	}
 
 	RiderEvent e = new RiderEvent(event, floor, elevator, direction);
-	for (int i=0; i<numRiders; i++) {
-	    RiderState rider = riders[i];
-	    if ((rider.inElevator && rider.elevator == e.elevator) ||
-		(!rider.inElevator && rider.floor == e.floor)) {
-		rider.events.add(e);
-		rider.schedule(1);
-	    }
+
+	// only the riders in the elevator and on the floor see the event
+	if (elevator != -1) {
+	    Vector<RiderState> inElevator = elevators[elevator].riders;
+	    for (int i=0; i<inElevator.size(); i++)
+		inElevator.elementAt(i).post(e);
 	}
+
+	FloorRiders onFloor = ridersOnFloor[floor];
+	for (int i=0; i<onFloor.size; i++)
+	    onFloor.riders[i].post(e);
+    }
+
+    /**
+     * The riders standing on one floor, outside any elevator. Each rider
+     * remembers its place in the array, so it can be added and removed in
+     * constant time.
+     */
+    private class FloorRiders {
+	void add(RiderState rider) {
+	    Lib.assertTrue(rider.floorIndex == -1);
+
+	    if (size == riders.length)
+		riders = Arrays.copyOf(riders, size*2);
+
+	    rider.floorIndex = size;
+	    riders[size++] = rider;
+	}
+
+	void remove(RiderState rider) {
+	    int index = rider.floorIndex;
+	    Lib.assertTrue(index >= 0 && index < size && riders[index] == rider);
+
+	    riders[index] = riders[--size];
+	    riders[index].floorIndex = index;
+	    riders[size] = null;
+	    rider.floorIndex = -1;
+	}
+
+	RiderState[] riders = new RiderState[4];
+	int size = 0;
     }
 
     private class ElevatorManager implements ElevatorControls {
@@ -462,10 +502,32 @@ public final class ElevatorBank implements Runnable {
 	}
 	
 	public RiderEvent getNextEvent() {
-	    if (events.isEmpty())
+	    if (numEvents == 0)
 		return null;
-	    else
-		return (RiderEvent) events.removeFirst();
+
+	    RiderEvent e = events[firstEvent];
+	    events[firstEvent] = null;
+	    firstEvent = (firstEvent+1) % events.length;
+	    numEvents--;
+	    return e;
+	}
+
+	/**
+	 * Queue <i>e</i> for this rider and schedule its interrupt.
+	 */
+	void post(RiderEvent e) {
+	    if (numEvents == events.length) {
+		// unroll the ring into a larger array
+		RiderEvent[] larger = new RiderEvent[events.length*2];
+		for (int i=0; i<numEvents; i++)
+		    larger[i] = events[(firstEvent+i) % events.length];
+		events = larger;
+		firstEvent = 0;
+	    }
+
+	    events[(firstEvent+numEvents) % events.length] = e;
+	    numEvents++;
+	    schedule(1);
 	}
 
 	public boolean pressDirectionButton(boolean up) {
@@ -519,6 +581,8 @@ public final class ElevatorBank implements Runnable {
 	    if (!elevators[elevator].enter(this, floor))
 		return false;
 
+	    ridersOnFloor[floor].remove(this);
+
 	    if (gui != null)
 		gui.enterElevator(floor, elevator);
 
@@ -551,6 +615,7 @@ public final class ElevatorBank implements Runnable {
 
 	    inElevator = false;
 	    floors.add(new Integer(floor));
+	    ridersOnFloor[floor].add(this);
 
 	    if (gui != null)
 		gui.exitElevator(floor, elevator);
@@ -560,6 +625,8 @@ public final class ElevatorBank implements Runnable {
 
 	public void finish() {
 	    finished = true;
+	    if (!inElevator)
+		ridersOnFloor[floor].remove(this);
 	    
 	    int[] floors = getFloors();
 	    Lib.assertTrue(floors.length == stops.length);
@@ -577,7 +644,7 @@ public final class ElevatorBank implements Runnable {
 	}
 
 	void interrupt() {
-	    if (!finished && !events.isEmpty() && handler != null)
+	    if (!finished && numEvents > 0 && handler != null)
 		handler.run();
 	}
 
@@ -600,7 +667,14 @@ public final class ElevatorBank implements Runnable {
 	int floor, elevator;
 	int[] stops;
 	Runnable interrupt, handler = null;
-	LinkedList<RiderEvent> events = new LinkedList<RiderEvent>();
+	/** A ring of the events not yet taken by the rider. */
+	RiderEvent[] events = new RiderEvent[4];
+	int firstEvent = 0, numEvents = 0;
+	/**
+	 * The rider's place in <tt>ridersOnFloor</tt>, or -1 if it is not
+	 * standing on a floor.
+	 */
+	int floorIndex = -1;
 	Vector<Integer> floors = new Vector<Integer>();
 	Semaphore done = new Semaphore(0);
 	KThread thread;
@@ -613,6 +687,8 @@ public final class ElevatorBank implements Runnable {
     private int numRiders;
     private Vector<RiderControls> ridersVector;
     private RiderState[] riders;
+    /** The riders standing on each floor, outside any elevator. */
+    private FloorRiders[] ridersOnFloor;
     
     private boolean simulationStarted, enableGui;
     private Privilege privilege;
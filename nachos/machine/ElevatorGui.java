@@ -19,6 +19,14 @@ import java.awt.Color;
 
 /**
  * A graphical visualization for the <tt>ElevatorBank</tt> class.
+ *
+ * <p>
+ * The elevator bank reports each change by updating a model of the bank,
+ * which takes no longer than setting a few fields. A render thread copies
+ * the model at most <tt>ElevatorGui.frameRate</tt> times a second, and
+ * repaints only the floors and shafts that differ from the last copy it
+ * drew. Changes made between two frames are shown together, so the
+ * simulation never waits for AWT.
  */
 public final class ElevatorGui extends Frame {
     private final static int w=90, h=75;
@@ -30,10 +38,21 @@ public final class ElevatorGui extends Frame {
 
     private int totalWidth, totalHeight;
 
+    /** The latest state of the bank, updated by the simulation. */
+    private final Snapshot model;
+    /** The copy of <tt>model</tt> being drawn. */
+    private volatile Snapshot shown;
+    private int frameMillis;
+
     ElevatorGui(int numFloors, int numElevators, int[] numRidersPerFloor) {
 	this.numFloors = numFloors;
 	this.numElevators = numElevators;
 
+	model = new Snapshot();
+	for (int i=0; i<numFloors; i++)
+	    model.floorRiders[i] = numRidersPerFloor[i];
+	shown = model.copy();
+
 	totalWidth = w*(numElevators+1);
 	totalHeight = h*numFloors;
 
@@ -43,7 +62,7 @@ public final class ElevatorGui extends Frame {
 	
 	floors = new Floor[numFloors];
 	for (int i=numFloors-1; i>=0; i--) {
-	    floors[i] = new Floor(i, numRidersPerFloor[i]);
+	    floors[i] = new Floor(i);
 	    floorPanel.add(floors[i]);
 	}
 
@@ -63,52 +82,169 @@ public final class ElevatorGui extends Frame {
 	setVisible(true);
 
 	repaint();
+
+	frameMillis = 1000 / Config.getInteger("ElevatorGui.frameRate", 30);
+	Lib.assertTrue(frameMillis > 0);
+
+	Thread renderer = new Thread(new Runnable() {
+		public void run() { render(); }
+	    }, "elevator gui");
+	renderer.setDaemon(true);
+	renderer.start();
     }
 
     void openDoors(int elevator) {
-	elevators[elevator].openDoors();
+	synchronized (model) {
+	    model.doorsOpen[elevator] = true;
+	    model.changed = true;
+	}
     }
     
     void closeDoors(int elevator) {
-	elevators[elevator].closeDoors();
+	synchronized (model) {
+	    model.doorsOpen[elevator] = false;
+	    model.changed = true;
+	}
     }
     
     void setDirectionDisplay(int elevator, int direction) {
-	elevators[elevator].setDirectionDisplay(direction);
+	synchronized (model) {
+	    model.direction[elevator] = direction;
+	    model.changed = true;
+	}
     }
     
     void pressUpButton(int floor) {
-	floors[floor].pressUpButton();
+	synchronized (model) {
+	    model.upSet[floor] = true;
+	    model.changed = true;
+	}
     }
 
     void clearUpButton(int floor) {
-	floors[floor].clearUpButton();
+	synchronized (model) {
+	    model.upSet[floor] = false;
+	    model.changed = true;
+	}
     }
 
     void pressDownButton(int floor) {
-	floors[floor].pressDownButton();
+	synchronized (model) {
+	    model.downSet[floor] = true;
+	    model.changed = true;
+	}
     }
     
     void clearDownButton(int floor) {
-	floors[floor].clearDownButton();
+	synchronized (model) {
+	    model.downSet[floor] = false;
+	    model.changed = true;
+	}
     }
 
     void enterElevator(int floor, int elevator) {
-	floors[floor].removeRider();
-	elevators[elevator].addRider();
+	synchronized (model) {
+	    model.floorRiders[floor]--;
+	    model.elevatorRiders[elevator]++;
+	    model.changed = true;
+	}
     }
     
     void pressFloorButton(int floor, int elevator) {
-	elevators[elevator].pressFloorButton(floor);
+	// the buttons inside an elevator are not drawn
     }
     
     void exitElevator(int floor, int elevator) {
-	elevators[elevator].removeRider();
-	floors[floor].addRider();
+	synchronized (model) {
+	    model.elevatorRiders[elevator]--;
+	    model.floorRiders[floor]++;
+	    model.changed = true;
+	}
     }
     
     void elevatorMoved(int floor, int elevator) {
-	elevators[elevator].elevatorMoved(floor);
+	synchronized (model) {
+	    model.elevatorFloor[elevator] = floor;
+	    model.changed = true;
+	}
+    }
+
+    /**
+     * The body of the render thread. Once every frame, copy the model if it
+     * has changed, and repaint whatever differs from the previous copy.
+     * Painting happens later on the AWT event thread, from the copy.
+     */
+    private void render() {
+	while (true) {
+	    try {
+		Thread.sleep(frameMillis);
+	    }
+	    catch (InterruptedException e) {
+		return;
+	    }
+
+	    Snapshot next;
+	    synchronized (model) {
+		if (!model.changed)
+		    continue;
+
+		next = model.copy();
+		model.changed = false;
+	    }
+
+	    Snapshot previous = shown;
+	    shown = next;
+
+	    for (int i=0; i<numFloors; i++) {
+		if (next.floorRiders[i] != previous.floorRiders[i] ||
+		    next.upSet[i] != previous.upSet[i] ||
+		    next.downSet[i] != previous.downSet[i])
+		    floors[i].repaint();
+	    }
+
+	    for (int i=0; i<numElevators; i++) {
+		if (next.elevatorFloor[i] != previous.elevatorFloor[i] ||
+		    next.doorsOpen[i] != previous.doorsOpen[i] ||
+		    next.direction[i] != previous.direction[i] ||
+		    next.elevatorRiders[i] != previous.elevatorRiders[i])
+		    elevators[i].repaintElevator(previous.elevatorFloor[i],
+						 next.elevatorFloor[i]);
+	    }
+	}
+    }
+
+    /**
+     * Everything the GUI draws about the bank.
+     */
+    private class Snapshot {
+	Snapshot copy() {
+	    Snapshot copy = new Snapshot();
+
+	    System.arraycopy(floorRiders, 0, copy.floorRiders, 0, numFloors);
+	    System.arraycopy(upSet, 0, copy.upSet, 0, numFloors);
+	    System.arraycopy(downSet, 0, copy.downSet, 0, numFloors);
+
+	    System.arraycopy(elevatorFloor, 0, copy.elevatorFloor, 0,
+			     numElevators);
+	    System.arraycopy(elevatorRiders, 0, copy.elevatorRiders, 0,
+			     numElevators);
+	    System.arraycopy(doorsOpen, 0, copy.doorsOpen, 0, numElevators);
+	    System.arraycopy(direction, 0, copy.direction, 0, numElevators);
+
+	    return copy;
+	}
+
+	int[] floorRiders = new int[numFloors];
+	boolean[] upSet = new boolean[numFloors];
+	boolean[] downSet = new boolean[numFloors];
+
+	int[] elevatorFloor = new int[numElevators];
+	int[] elevatorRiders = new int[numElevators];
+	boolean[] doorsOpen = new boolean[numElevators];
+	int[] direction = new int[numElevators];
+
+	/** The model differs from the last copy taken. */
+	boolean changed = false;
     }
 
     private void paintRider(Graphics g, int x, int y, int r) {
@@ -142,14 +278,10 @@ public final class ElevatorGui extends Frame {
     }
 
     private class Floor extends Canvas {
-	int floor, numRiders;
-
-	boolean upSet = false;
-	boolean downSet = false;
+	int floor;
 
-	Floor(int floor, int numRiders) {
+	Floor(int floor) {
 	    this.floor = floor;
-	    this.numRiders = numRiders;
 
 	    setBackground(Color.black);
 	}
@@ -166,68 +298,18 @@ public final class ElevatorGui extends Frame {
 	    return getPreferredSize();
 	}
 
-	public void repaint() {
-	    super.repaint();
-	    
-	    if (TCB.isNachosThread()) {
-		try {
-		    Thread.sleep(100);
-		}
-		catch (InterruptedException e) {
-		}
-	    }
-	}
-
-	void pressUpButton() {
-	    if (!upSet) {
-		upSet = true;
-		repaint();
-	    }
-	}
-
-	void pressDownButton() {
-	    if (!downSet) {
-		downSet = true;
-		repaint();
-	    }
-	}
-
-	void clearUpButton() {
-	    if (upSet) {
-		upSet = false;
-		repaint();
-	    }
-	}
-
-	void clearDownButton() {
-	    if (downSet) {
-		downSet = false;
-		repaint();
-	    }
-	}	
-
-	void addRider() {
-	    numRiders++;
-
-	    repaint();
-	}
-
-	void removeRider() {
-	    numRiders--;
-
-	    repaint();
-	}
-
 	public void paint(Graphics g) {
+	    Snapshot state = shown;
+
 	    g.setColor(Color.lightGray);
 	    g.drawLine(0, 0, w, 0);
 
-	    paintRiders(g, 0, 5, 3*w/4, h-10, numRiders);
+	    paintRiders(g, 0, 5, 3*w/4, h-10, state.floorRiders[floor]);
 
-	    paintButtons(g);
+	    paintButtons(g, state.upSet[floor], state.downSet[floor]);
 	}
 
-	private void paintButtons(Graphics g) {
+	private void paintButtons(Graphics g, boolean upSet, boolean downSet) {
 	    int s = 3*w/4;
 
 	    int x1 = s+w/32;
@@ -267,10 +349,6 @@ public final class ElevatorGui extends Frame {
 	ElevatorShaft(int elevator) {
 	    this.elevator = elevator;
 
-	    floorsSet = new boolean[numFloors];
-	    for (int i=0; i<numFloors; i++)
-		floorsSet[i] = false;
-
 	    setBackground(Color.black);
 	}
 
@@ -286,64 +364,23 @@ public final class ElevatorGui extends Frame {
 	    return getPreferredSize();
 	}
 
-	private void repaintElevator() {
-	    repaint(s, h*(numFloors-1-Math.max(floor, prevFloor)), w-2*s, h*2);
-	    
-	    try {
-		Thread.sleep(100);
-	    }
-	    catch (InterruptedException e) {
-	    }
-	}
-
-	void openDoors() {
-	    doorsOpen = true;
+	/**
+	 * Repaint the part of the shaft between <i>fromFloor</i> and
+	 * <i>toFloor</i>, where the elevator was and is now.
+	 */
+	void repaintElevator(int fromFloor, int toFloor) {
+	    int top = Math.max(fromFloor, toFloor);
+	    int bottom = Math.min(fromFloor, toFloor);
 
-	    repaintElevator();
-	}
-
-	void closeDoors() {
-	    doorsOpen = false;
-	    
-	    repaintElevator();
-	}
-
-	void setDirectionDisplay(int direction) {
-	    this.direction = direction;
-
-	    repaintElevator();
-	}
-
-	void pressFloorButton(int floor) {
-	    if (!floorsSet[floor]) {
-		floorsSet[floor] = true;
-
-		repaintElevator();
-	    }
-	}
-
-	void elevatorMoved(int floor) {
-	    prevFloor = this.floor;
-	    this.floor = floor;
-
-	    floorsSet[floor] = false;
-
-	    repaintElevator();
-	}
-
-	void addRider() {
-	    numRiders++;
-
-	    repaintElevator();
-	}
-
-	void removeRider() {
-	    numRiders--;
-
-	    repaintElevator();
+	    repaint(s, h*(numFloors-1-top), w-2*s, h*(top-bottom+1));
 	}
 
 	public void paint(Graphics g) {
+	    Snapshot state = shown;
+	    int floor = state.elevatorFloor[elevator];
+	    int numRiders = state.elevatorRiders[elevator];
+	    int direction = state.direction[elevator];
+
 	    g.setColor(Color.lightGray);
 	    
 	    if (g.hitClip(0, 0, s, h*numFloors)) {
@@ -376,7 +413,7 @@ public final class ElevatorGui extends Frame {
 	    g.setColor(Color.lightGray);
 	    
 	    // draw doors...
-	    if (doorsOpen) {
+	    if (state.doorsOpen[elevator]) {
 		g.drawLine(e.x+2*s, e.y, e.x+2*s, e.y+e.height);
 		for (int y=0; y<e.height-2*s; y+=2*s)
 		    g.drawLine(e.x, e.y+y, e.x+2*s, e.y+y+2*s);
@@ -412,13 +449,7 @@ public final class ElevatorGui extends Frame {
 	}
 
 	private static final int s = 5;
-	
-	private boolean doorsOpen = false;
-	private int floor = 0, prevFloor = 0, numRiders = 0;
-	private int direction = ElevatorBank.dirNeither;
 
 	private int elevator;
-
-	private boolean floorsSet[];
     }
 }
@@ -5,7 +5,6 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
 import java.security.PrivilegedAction;
 
 /**
@@ -66,7 +65,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(numRunningThreads < maxThreads);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -81,7 +80,7 @@ public final class TCB {
 	 * TCB. Whether or not this is the first TCB, it gets added to
 	 * runningThreads, and we save the target closure.
 	 */
-	runningThreads.add(this);
+	addRunningThread(this);
 
 	this.target = target;
 
@@ -244,16 +243,14 @@ public final class TCB {
 		privilege.exit(1);
 	    }
 
-	    runningThreads.removeElement(this);
-	    if (runningThreads.isEmpty())
+	    if (removeRunningThread(this) == 0)
 		privilege.exit(0);
 	}
 	catch (Throwable e) {
 	    System.out.print("\n");
 	    e.printStackTrace();
 
-	    runningThreads.removeElement(this);
-	    if (runningThreads.isEmpty())
+	    if (removeRunningThread(this) == 0)
 		privilege.exit(1);
 	    else
 		die();
@@ -319,6 +316,39 @@ public final class TCB {
 	    nachosThread = thread;
     }
 
+    /**
+     * Add <i>tcb</i> to the end of <tt>runningThreads</tt>, growing the array
+     * if it is full.
+     */
+    private static synchronized void addRunningThread(TCB tcb) {
+	if (numRunningThreads == runningThreads.length) {
+	    TCB[] larger = new TCB[runningThreads.length * 2];
+	    System.arraycopy(runningThreads, 0, larger, 0, numRunningThreads);
+	    runningThreads = larger;
+	}
+
+	tcb.runningIndex = numRunningThreads;
+	runningThreads[numRunningThreads++] = tcb;
+    }
+
+    /**
+     * Remove <i>tcb</i> from <tt>runningThreads</tt> by moving the last TCB
+     * into its slot.
+     *
+     * @return	the number of TCBs still running.
+     */
+    private static synchronized int removeRunningThread(TCB tcb) {
+	Lib.assertTrue(runningThreads[tcb.runningIndex] == tcb);
+
+	TCB last = runningThreads[--numRunningThreads];
+	runningThreads[tcb.runningIndex] = last;
+	last.runningIndex = tcb.runningIndex;
+	runningThreads[numRunningThreads] = null;
+	tcb.runningIndex = -1;
+
+	return numRunningThreads;
+    }
+
     private static void authorizeDestroy(KThread thread) {
 	// make sure AutoGrader.finishingThread() gets called only once per
 	// destroy
@@ -328,9 +358,11 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence. Set by <tt>TCB.maxThreads</tt> in <tt>nachos.conf</tt>, and
+     * 250 by default.
      */
-    public static final int maxThreads = 250;
+    public static final int maxThreads =
+	Config.getInteger("TCB.maxThreads", 250);
 
     /**
      * A reference to the currently running TCB. It is initialized to
@@ -348,8 +380,10 @@ public final class TCB {
     private static TCB currentTCB = null;
 
     /**
-     * A vector containing all <i>running</i> TCB objects. It is initialized to
-     * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
+     * An array containing all <i>running</i> TCB objects in its first
+     * <tt>numRunningThreads</tt> elements. Each TCB records its index in
+     * <tt>runningIndex</tt>, so adding and removing a TCB take constant time
+     * however many are running. It is initially empty. TCB objects are
      * added only in <tt>start(Runnable)</tt>, which can only be invoked once
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
@@ -357,9 +391,10 @@ public final class TCB {
      * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
-     * the first TCB is created, this vector is basically never empty.
+     * the first TCB is created, this array is basically never empty.
      */
-    private static Vector<TCB> runningThreads = new Vector<TCB>();
+    private static TCB[] runningThreads = new TCB[16];
+    private static int numRunningThreads = 0;
     
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
@@ -401,6 +436,8 @@ public final class TCB {
     private boolean associated = false;
     private Runnable target;
     private Runnable tcbTarget;
+    /** The index of this TCB in <tt>runningThreads</tt>, while it runs. */
+    private int runningIndex = -1;
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
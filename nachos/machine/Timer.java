@@ -13,6 +13,11 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * The timer can also be programmed to deliver a single alarm interrupt at an
+ * exact time, which lets the kernel wake sleeping threads without waiting for
+ * the next periodic interrupt.
  */
 public final class Timer {
     /**
@@ -50,6 +55,35 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Set the callback to use as the one-shot alarm interrupt handler. See
+     * <tt>scheduleAlarm()</tt>.
+     *
+     * @param	handler		the alarm interrupt handler.
+     */
+    public void setAlarmHandler(Runnable handler) {
+	this.alarmHandler = handler;
+    }
+
+    /**
+     * Program a one-shot alarm interrupt at the specified time, in addition
+     * to the periodic timer interrupts. Only the most recently programmed
+     * alarm is delivered; programming a new alarm cancels any earlier one
+     * that has not yet gone off.
+     *
+     * @param	time	the time at which the alarm handler should be called.
+     *			If this time has already passed, the alarm goes off on
+     *			the next tick.
+     */
+    public void scheduleAlarm(long time) {
+	final long generation = ++alarmGeneration;
+
+	privilege.interrupt.schedule(Math.max(time - getTime(), 1), "alarm",
+				     new Runnable() {
+		public void run() { alarmInterrupt(generation); }
+	    });
+    }
+
     /**
      * Get the current time.
      *
@@ -69,6 +103,11 @@ public final class Timer {
 	    handler.run();
     }
 
+    private void alarmInterrupt(long generation) {
+	if (generation == alarmGeneration && alarmHandler != null)
+	    alarmHandler.run();
+    }
+
     private void scheduleInterrupt() {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
@@ -86,4 +125,6 @@ public final class Timer {
 
     private Privilege privilege;
     private Runnable handler = null;
+    private Runnable alarmHandler = null;
+    private long alarmGeneration = 0;
 }
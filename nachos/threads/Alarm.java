@@ -1,12 +1,17 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.Queue;
-import java.util.LinkedList;
-import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.ArrayList;
 /**
- * Uses the hardware timer to provide preemption, and to allow threads to sleep
- * until a certain time.
+ * Uses the hardware timer to provide preemption, to allow threads to sleep
+ * until a certain time, and to run callbacks at a certain time or
+ * periodically.
+ *
+ * <p>
+ * Sleeping threads and scheduled callbacks share one heap ordered by time.
+ * Heap nodes are recycled through a free list, so a caller that reuses its
+ * <tt>Timeout</tt> can schedule and cancel callbacks without allocating.
  */
 public class Alarm {
     /**
@@ -20,26 +25,106 @@ public class Alarm {
 	   Machine.timer().setInterruptHandler(new Runnable() {
 		  public void run() { timerInterrupt(); }
 	   });
-       waitQueue = new LinkedList<ThreadObject> ();
+       Machine.timer().setAlarmHandler(new Runnable() {
+          public void run() { alarmInterrupt(); }
+       });
+       waitQueue = new PriorityQueue<ThreadObject> ();
+       coalesceTicks = Config.getInteger("Alarm.coalesceTicks",
+                                         Stats.TimerTicks/10);
+       Lib.assertTrue(coalesceTicks >= 0);
     }
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). Wakes any sleeping
+     * threads that are due; sleepers are kept in a heap ordered by wake time,
+     * so only the threads being woken are touched. Then causes the current
+     * thread to yield if the scheduler decides it has used up its time slice.
      */
     public void timerInterrupt() {
-        Machine.interrupt().disable();
-        Iterator<ThreadObject> iter = waitQueue.iterator();
-        while (iter.hasNext()) {
-            ThreadObject nxt = iter.next();
-            if (nxt.wakeTime <= Machine.timer().getTime()) {
-                iter.remove();
-                nxt.thread.ready();
+        boolean intStatus = Machine.interrupt().disable();
+        wakeSleepers();
+        if (ThreadedKernel.scheduler.timerInterrupt(KThread.currentThread())) {
+            KThread.yield();
+        }
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * The one-shot alarm interrupt handler. This is called by the machine's
+     * timer at the time most recently programmed by <tt>programAlarm()</tt>.
+     * Wakes the sleeping threads that are due, then programs the next alarm.
+     */
+    public void alarmInterrupt() {
+        boolean intStatus = Machine.interrupt().disable();
+        alarmTime = Long.MAX_VALUE;
+        wakeSleepers();
+        if (!waitQueue.isEmpty()) {
+            programAlarm(waitQueue.peek().wakeTime);
+        }
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Ready every sleeping thread whose wake time has passed.
+     */
+    private void wakeSleepers() {
+        long time = Machine.timer().getTime();
+        while (!waitQueue.isEmpty() && waitQueue.peek().wakeTime <= time) {
+            ThreadObject node = waitQueue.poll();
+            if (node.thread != null) {
+                node.thread.ready();
+            }
+            else if (node.generation != node.timeout.generation) {
+                numStale--;
+            }
+            else {
+                fire(node.timeout, node.wakeTime, time);
             }
+            freeNode(node);
         }
-        Machine.interrupt().enable();
+    }
+
+    /**
+     * Run the callback of a timeout that has expired, and schedule its next
+     * run if it is periodic. Missed periods are skipped rather than run late.
+     */
+    private void fire(Timeout timeout, long wakeTime, long time) {
+        long generation = timeout.generation;
+
+        if (timeout.period == 0) {
+            timeout.scheduled = false;
+        }
+        firing = timeout;
+        timeout.callback.run();
+        firing = null;
+
+        // the callback may have cancelled or rescheduled the timeout
+        if (timeout.period != 0 && timeout.scheduled
+            && timeout.generation == generation) {
+            long next = wakeTime + timeout.period;
+            if (next <= time) {
+                next += (time - next) / timeout.period * timeout.period
+                    + timeout.period;
+            }
+            insert(timeout, next);
+        }
+    }
+
+    /**
+     * Make sure a one-shot alarm goes off no later than
+     * <tt>wakeTime + coalesceTicks</tt>. An alarm that is already programmed
+     * to go off by then is left alone, so sleepers with nearby wake times
+     * share one interrupt; the alarm handler programs the next alarm for any
+     * sleepers it leaves behind.
+     */
+    private void programAlarm(long wakeTime) {
+        if (alarmTime <= wakeTime + coalesceTicks) {
+            return;
+        }
+        alarmTime = wakeTime;
+        numAlarms++;
+        Machine.timer().scheduleAlarm(wakeTime);
     }
 
     /**
@@ -52,6 +137,11 @@ public class Alarm {
      * (current time) >= (WaitUntil called time)+(x)
      * </blockquote>
      *
+     * <p>
+     * A one-shot alarm is programmed for the wake time, so the thread is
+     * woken within <tt>Alarm.coalesceTicks</tt> ticks of it rather than at the
+     * next periodic interrupt.
+     *
      * @param	x	the minimum number of clock ticks to wait.
      *
      * @see	nachos.machine.Timer#getTime()
@@ -64,23 +154,370 @@ public class Alarm {
         Machine.interrupt().disable();
         long wakeTime = Machine.timer().getTime() + x;
         KThread curr = KThread.currentThread();
-        waitQueue.add(new ThreadObject(curr, wakeTime));
+        ThreadObject node = newNode(wakeTime);
+        node.thread = curr;
+        waitQueue.add(node);
+        programAlarm(wakeTime);
         KThread.sleep();
         Machine.interrupt().enable();
     }
 
-    private Queue<ThreadObject> waitQueue;
+    /**
+     * Put the current thread to sleep on <i>waitQueue</i> for at most
+     * <i>x</i> ticks. The thread is added to the queue with
+     * <tt>waitForAccess()</tt>, and sleeps until either it is handed access
+     * by <tt>nextThread()</tt> and readied, or the time runs out, in which
+     * case it is removed from the queue and readied by the alarm. Interrupts
+     * must be disabled, and stay disabled from the check that made the caller
+     * wait until the thread is queued, so no wakeup can be lost.
+     *
+     * @param	waitQueue	the queue to wait on.
+     * @param	x		the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the thread was given access, or
+     *		<tt>false</tt> if it timed out.
+     */
+    public boolean sleepOn(final ThreadQueue waitQueue, long x) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        final KThread thread = KThread.currentThread();
+        final boolean[] timedOut = new boolean[1];
+
+        waitQueue.waitForAccess(thread);
+        Timeout timeout = schedule(new Runnable() {
+            public void run() {
+                if (waitQueue.remove(thread)) {
+                    timedOut[0] = true;
+                    thread.ready();
+                }
+            }
+        }, x);
+
+        KThread.sleep();
+
+        cancel(timeout);
+        return !timedOut[0];
+    }
+
+    /**
+     * Run <i>callback</i> once, at least <i>delay</i> ticks from now.
+     *
+     * @param	callback	the callback to run.
+     * @param	delay		the minimum number of clock ticks to wait.
+     * @return	a handle that can be used to cancel or reschedule the callback.
+     *
+     * @see	#schedule(Alarm.Timeout, long, long)
+     */
+    public Timeout schedule(Runnable callback, long delay) {
+        Timeout timeout = new Timeout(callback);
+        schedule(timeout, delay, 0);
+        return timeout;
+    }
+
+    /**
+     * Run <i>callback</i> at least <i>delay</i> ticks from now, and then every
+     * <i>period</i> ticks until it is cancelled.
+     *
+     * @param	callback	the callback to run.
+     * @param	delay		the minimum number of clock ticks to wait for
+     *				the first run.
+     * @param	period		the number of clock ticks between runs.
+     * @return	a handle that can be used to cancel or reschedule the callback.
+     *
+     * @see	#schedule(Alarm.Timeout, long, long)
+     */
+    public Timeout schedulePeriodic(Runnable callback, long delay,
+                                    long period) {
+        Lib.assertTrue(period > 0);
+
+        Timeout timeout = new Timeout(callback);
+        schedule(timeout, delay, period);
+        return timeout;
+    }
+
+    /**
+     * Schedule the callback of <i>timeout</i> to run at least <i>delay</i>
+     * ticks from now, and then every <i>period</i> ticks if <i>period</i> is
+     * not zero. If the timeout is already scheduled, its earlier schedule is
+     * cancelled.
+     *
+     * <p>
+     * Callbacks run in the timer interrupt handler, with interrupts disabled,
+     * on whichever thread happens to be running. They must not block; they may
+     * wake threads, and may schedule or cancel timeouts, including their own.
+     *
+     * @param	timeout	the timeout to schedule.
+     * @param	delay	the minimum number of clock ticks to wait.
+     * @param	period	the number of clock ticks between runs, or 0 to run
+     *			the callback only once.
+     */
+    public void schedule(Timeout timeout, long delay, long period) {
+        Lib.assertTrue(delay >= 0 && period >= 0);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        cancel(timeout);
+        timeout.period = period;
+        timeout.scheduled = true;
+        insert(timeout, Machine.timer().getTime() + delay);
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Move the next run of a timeout to at least <i>delay</i> ticks from now,
+     * keeping its period. A watchdog can call this each time it is fed.
+     *
+     * @param	timeout	the timeout to reschedule.
+     * @param	delay	the minimum number of clock ticks to wait.
+     */
+    public void reschedule(Timeout timeout, long delay) {
+        schedule(timeout, delay, timeout.period);
+    }
+
+    /**
+     * Cancel a timeout, so that its callback does not run again. The node
+     * holding it stays in the heap until it expires, and is then discarded.
+     *
+     * @param	timeout	the timeout to cancel.
+     * @return	<tt>true</tt> if the timeout was scheduled.
+     */
+    public boolean cancel(Timeout timeout) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        boolean scheduled = timeout.scheduled;
+        if (scheduled) {
+            timeout.scheduled = false;
+            timeout.generation++;
+            // the node of a timeout whose callback is running is not in the
+            // heap any more
+            if (timeout != firing) {
+                numStale++;
+            }
+            if (numStale > 64 && numStale > waitQueue.size() / 2) {
+                purgeStale();
+            }
+        }
+
+        Machine.interrupt().restore(intStatus);
+        return scheduled;
+    }
+
+    /**
+     * A callback that can be scheduled to run at a certain time, or
+     * periodically. A <tt>Timeout</tt> may be scheduled any number of times,
+     * but is scheduled at most once at any moment.
+     */
+    public static class Timeout {
+        /**
+         * Allocate a new, unscheduled timeout.
+         *
+         * @param	callback	the callback to run when it expires.
+         */
+        public Timeout(Runnable callback) {
+            Lib.assertTrue(callback != null);
+            this.callback = callback;
+        }
+
+        /**
+         * Return <tt>true</tt> if this timeout is scheduled to run again.
+         *
+         * @return	<tt>true</tt> if this timeout is scheduled.
+         */
+        public boolean isScheduled() {
+            return scheduled;
+        }
+
+        private Runnable callback;
+        private long period = 0;
+        private boolean scheduled = false;
+        /** Incremented each time the timeout is cancelled. */
+        private long generation = 0;
+    }
+
+    private void insert(Timeout timeout, long wakeTime) {
+        ThreadObject node = newNode(wakeTime);
+        node.timeout = timeout;
+        node.generation = timeout.generation;
+        waitQueue.add(node);
+        programAlarm(wakeTime);
+    }
+
+    /**
+     * Remove the nodes of cancelled timeouts from the heap, once they make
+     * up more than half of it.
+     */
+    private void purgeStale() {
+        ArrayList<ThreadObject> live =
+            new ArrayList<ThreadObject>(waitQueue.size() - numStale);
+        for (ThreadObject node : waitQueue) {
+            if (node.thread != null
+                || node.generation == node.timeout.generation) {
+                live.add(node);
+            }
+            else {
+                freeNode(node);
+            }
+        }
+        waitQueue.clear();
+        waitQueue.addAll(live);
+        numStale = 0;
+    }
+
+    private ThreadObject newNode(long wakeTime) {
+        ThreadObject node = freeNodes;
+        if (node != null) {
+            freeNodes = node.next;
+            node.next = null;
+        }
+        else {
+            node = new ThreadObject();
+        }
+        node.wakeTime = wakeTime;
+        node.sequence = numSleeps++;
+        return node;
+    }
+
+    private void freeNode(ThreadObject node) {
+        node.thread = null;
+        node.timeout = null;
+        node.next = freeNodes;
+        freeNodes = node;
+    }
+
+    /**
+     * Test one-shot, periodic, cancelled and rescheduled timeouts.
+     */
+    public static void selfTest() {
+        final Alarm alarm = ThreadedKernel.alarm;
+        final Semaphore done = new Semaphore(0);
+        final int[] runs = new int[3];
+        final int numPeriods = 5;
+
+        alarm.schedule(new Runnable() {
+            public void run() { runs[0]++; done.V(); }
+        }, 1000);
+
+        final Timeout[] periodic = new Timeout[1];
+        periodic[0] = alarm.schedulePeriodic(new Runnable() {
+            public void run() {
+                if (++runs[1] == numPeriods) {
+                    alarm.cancel(periodic[0]);
+                    done.V();
+                }
+            }
+        }, 100, 300);
+
+        Timeout cancelled = alarm.schedule(new Runnable() {
+            public void run() { runs[2]++; }
+        }, 500);
+        Lib.assertTrue(alarm.cancel(cancelled));
+        Lib.assertTrue(!alarm.cancel(cancelled));
+
+        long start = Machine.timer().getTime();
+        Timeout watchdog = alarm.schedule(new Runnable() {
+            public void run() { done.V(); }
+        }, 200);
+        for (int i = 0; i <= 200; i++) {
+            alarm.reschedule(watchdog, 10*i);
+        }
+        Lib.assertTrue(alarm.numStale <= alarm.waitQueue.size());
+
+        for (int i = 0; i < 3; i++) {
+            done.P();
+        }
+        Lib.assertTrue(Machine.timer().getTime() - start >= 2000);
+        Lib.assertTrue(runs[0] == 1 && runs[1] == numPeriods && runs[2] == 0);
+        Lib.assertTrue(!periodic[0].isScheduled() && !watchdog.isScheduled());
+    }
+
+    /**
+     * Measure the cost of many threads sleeping at once. Each of
+     * <i>n</i> threads sleeps once for a random time of up to 100 timer
+     * periods. Reports the host time taken and how late the sleepers woke.
+     * Up to 10,000 threads sleep, as many as <tt>TCB.maxThreads</tt> allows;
+     * a smaller run says so, and if there is no room for any, the benchmark
+     * is skipped.
+     */
+    public static void benchmark() {
+        final int n = Math.min(10000, TCB.maxThreads - 50);
+        if (n <= 0) {
+            System.out.println("Alarm: no room for sleepers; raise"
+                               + " TCB.maxThreads (now " + TCB.maxThreads
+                               + ") above 50 to run the benchmark");
+            return;
+        }
+        if (n < 10000) {
+            System.out.println("Alarm: only " + n + " of 10000 sleepers;"
+                               + " raise TCB.maxThreads (now "
+                               + TCB.maxThreads + ") to run them all");
+        }
+        final Semaphore done = new Semaphore(0);
+        final long[] late = new long[2];
+
+        long start = System.nanoTime();
+        long startTicks = Machine.timer().getTime();
+
+        for (int i = 0; i < n; i++) {
+            final long delay = 1 + Lib.random(100*Stats.TimerTicks);
+            new KThread(new Runnable() {
+                public void run() {
+                    long due = Machine.timer().getTime() + delay;
+                    ThreadedKernel.alarm.waitUntil(delay);
+                    long l = Machine.timer().getTime() - due;
+                    late[0] += l;
+                    late[1] = Math.max(late[1], l);
+                    done.V();
+                }
+            }).setName("sleeper" + i).fork();
+        }
+
+        for (int i = 0; i < n; i++) {
+            done.P();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        System.out.println("Alarm: " + n + " sleepers, "
+                           + (Machine.timer().getTime() - startTicks)
+                           + " ticks, " + (elapsed / 1000000) + " ms, "
+                           + "lateness mean " + (late[0] / n)
+                           + " ticks, max " + late[1] + " ticks, "
+                           + ThreadedKernel.alarm.numAlarms + " alarms");
+    }
+
+    private PriorityQueue<ThreadObject> waitQueue;
+    private long numSleeps = 0;
+    /** The number of nodes in the heap that belong to cancelled timeouts. */
+    private int numStale = 0;
+    private ThreadObject freeNodes = null;
+    private Timeout firing = null;
+    /** The time of the programmed one-shot alarm, if any. */
+    private long alarmTime = Long.MAX_VALUE;
+    private long coalesceTicks;
+    private long numAlarms = 0;
 }
 
-class ThreadObject {
+/**
+ * A sleeping thread or a scheduled timeout, and the time it should be woken.
+ * Nodes are ordered by wake time, and then by the order in which they were
+ * added.
+ */
+class ThreadObject implements Comparable<ThreadObject> {
+    /** The sleeping thread, or <tt>null</tt> if this node is a timeout. */
     KThread thread;
+    Alarm.Timeout timeout;
+    /** The generation of <tt>timeout</tt> this node was scheduled for. */
+    long generation;
     long wakeTime;
-    public ThreadObject() {
-        wakeTime = 0;
-        thread = null;
-    }
-    public ThreadObject(KThread t0, long time) {
-        wakeTime = time;
-        thread = t0;
+    long sequence;
+    /** The next node in the free list. */
+    ThreadObject next;
+    public int compareTo(ThreadObject o) {
+        if (wakeTime != o.wakeTime) {
+            return (wakeTime < o.wakeTime) ? -1 : 1;
+        }
+        if (sequence != o.sequence) {
+            return (sequence < o.sequence) ? -1 : 1;
+        }
+        return 0;
     }
 }
\ No newline at end of file
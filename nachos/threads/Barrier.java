@@ -0,0 +1,105 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>barrier</i> makes a fixed number of threads wait for each other. Each
+ * thread calls <tt>await()</tt>; the first <i>parties</i> - 1 callers sleep,
+ * and the last one wakes them all. The barrier then resets, so the same
+ * threads can use it again for their next phase.
+ *
+ * <p>
+ * Waiting threads sleep on a single thread queue and are all made ready in one
+ * pass, so each waiter costs one context switch to put to sleep and one to
+ * run again.
+ */
+public class Barrier {
+    /**
+     * Allocate a new barrier.
+     *
+     * @param	parties	the number of threads that must call <tt>await()</tt>
+     *			before any of them return.
+     */
+    public Barrier(int parties) {
+	this(parties, null);
+    }
+
+    /**
+     * Allocate a new barrier that runs an action each time it trips.
+     *
+     * @param	parties	the number of threads that must call <tt>await()</tt>
+     *			before any of them return.
+     * @param	action	run by the last thread to arrive, before the others
+     *			are woken, or <tt>null</tt> for no action.
+     */
+    public Barrier(int parties, Runnable action) {
+	Lib.assertTrue(parties > 0);
+
+	this.parties = parties;
+	this.action = action;
+    }
+
+    /**
+     * Wait until <i>parties</i> threads have called this method.
+     *
+     * @return	the number of threads still to arrive after this one, so the
+     *		last thread to arrive gets 0.
+     */
+    public int await() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int index = parties - 1 - arrived;
+	if (index > 0) {
+	    arrived++;
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+	else {
+	    arrived = 0;
+	    if (action != null)
+		action.run();
+	    waitQueue.readyAll();
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return index;
+    }
+
+    /**
+     * Test that no thread passes the barrier until all have arrived, over
+     * several phases, and that the action runs once per phase.
+     */
+    public static void selfTest() {
+	final int numThreads = 10, numPhases = 5;
+	final int[] arrivals = new int[1], trips = new int[1];
+	final Barrier barrier = new Barrier(numThreads + 1, new Runnable() {
+		public void run() {
+		    Lib.assertTrue(arrivals[0] == (trips[0]+1) * numThreads);
+		    trips[0]++;
+		}
+	    });
+
+	for (int i=0; i<numThreads; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			for (int phase=0; phase<numPhases; phase++) {
+			    arrivals[0]++;
+			    barrier.await();
+			    Lib.assertTrue(trips[0] == phase+1);
+			}
+		    }
+		}).setName("barrier" + i).fork();
+	}
+
+	for (int phase=0; phase<numPhases; phase++) {
+	    barrier.await();
+	    Lib.assertTrue(trips[0] == phase+1);
+	}
+    }
+
+    private int parties;
+    private Runnable action;
+    private int arrived = 0;
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+}
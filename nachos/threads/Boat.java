@@ -1,199 +1,285 @@
 package nachos.threads;
 import nachos.ag.BoatGrader;
+import nachos.machine.*;
 
+/**
+ * A solution to the boat problem: adults and children must all get from
+ * Oahu to Molokai in a boat that holds two children, or one adult, and needs
+ * a pilot.
+ *
+ * Two children cross together whenever two are on Oahu, and one of them rows
+ * back. When a single child is left on Oahu, an adult crosses instead and a
+ * child on Molokai brings the boat back. Every step is handed to exactly one
+ * thread through <tt>turn</tt>, and the thread taking a step wakes only the
+ * thread that must take the next one, so a crossing costs the same however
+ * many people are waiting. The thread whose crossing empties Oahu reports
+ * completion once, and every thread then finishes.
+ */
 public class Boat
 {
+    /** Nobody may act. */
+    private static final int turnNone = 0;
+    /** A child on Oahu should take the pilot's seat. */
+    private static final int turnPilot = 1;
+    /** A child on Oahu should board as the pilot's passenger. */
+    private static final int turnPassenger = 2;
+    /** The passenger has boarded; the pilot should row. */
+    private static final int turnBoarded = 3;
+    /** The pilot has rowed; the passenger should get off. */
+    private static final int turnArrived = 4;
+    /** An adult on Oahu should row to Molokai. */
+    private static final int turnAdult = 5;
+    /** The last child on Oahu should row to Molokai alone. */
+    private static final int turnAlone = 6;
+    /** A child on Molokai should row the boat back to Oahu. */
+    private static final int turnReturn = 7;
 
-    static BoatGrader bg;
-    static int numChildrenOnOahu;
-    static int numAdultsOnOahu;
-    static int numChildrenOnMolokai;
-    static int numAdultsOnMolokai;
-    static String boatLocation;
-    static Lock pilotSeat;
-    static Lock terminationLock;
-    static Condition2 canRowToOahu;
-    static Condition2 canRowToMolokai;
-    static Condition2 passengerCondition;
-    static Condition2 terminationCondition;
-    static boolean hasChildPilot;
-    static boolean hasPassenger;
+    private BoatGrader bg;
+    private int numChildrenOnOahu;
+    private int numAdultsOnOahu;
+    private int numChildrenOnMolokai;
+    private int numAdultsOnMolokai;
+    private int turn = turnNone;
+    private boolean done = false;
+
+    private Lock lock = new Lock();
+    private Condition2 childrenOnOahu = new Condition2(lock);
+    private Condition2 adultsOnOahu = new Condition2(lock);
+    private Condition2 childrenOnMolokai = new Condition2(lock);
+    private Condition2 pilotSeat = new Condition2(lock);
+    private Condition2 passengerSeat = new Condition2(lock);
+    private CountDownLatch finished = new CountDownLatch(1);
 
     public static void selfTest()
     {
-        BoatGrader b = new BoatGrader();
-        System.out.println("\n ***Testing Boats with only 2 children***");
-        begin(0, 2, b);
+        int[][] cases = { { 0, 2 }, { 1, 2 }, { 3, 3 }, { 5, 2 }, { 20, 7 } };
+        for (int i = 0; i < cases.length; i++) {
+            CheckingGrader grader =
+                new CheckingGrader(cases[i][0], cases[i][1]);
+            begin(cases[i][0], cases[i][1], grader);
+            grader.checkFinished();
+        }
+    }
+
+    /**
+     * Move populations of increasing size across, up to the largest that
+     * <tt>TCB.maxThreads</tt> allows, and report the crossings per simulated
+     * tick. Sizes that do not fit are reported as skipped.
+     */
+    public static void benchmark()
+    {
+        int[] sizes = { 10, 100, 1000, 5000 };
+        for (int i = 0; i < sizes.length; i++) {
+            int adults = sizes[i], children = sizes[i];
+            if (adults + children > TCB.maxThreads - 50) {
+                System.out.println("Boat: skipped " + adults + " adults, "
+                                   + children + " children and larger;"
+                                   + " raise TCB.maxThreads (now "
+                                   + TCB.maxThreads + ") to run them");
+                break;
+            }
+
+            CheckingGrader grader = new CheckingGrader(adults, children);
+            long startTicks = Machine.timer().getTime();
+            long startTime = System.nanoTime();
+
+            begin(adults, children, grader);
 
-    //  System.out.println("\n ***Testing Boats with 2 children, 1 adult***");
-    //      begin(1, 2, b);
+            long ticks = Machine.timer().getTime() - startTicks;
+            long elapsed = System.nanoTime() - startTime;
+            grader.checkFinished();
 
-    //      System.out.println("\n ***Testing Boats with 3 children, 3 adults***");
-    //      begin(3, 3, b);
+            System.out.println("Boat: " + adults + " adults, " + children
+                               + " children, " + grader.numCrossings
+                               + " crossings, " + ticks + " ticks, "
+                               + (Math.round(1000.0 * grader.numCrossings
+                                             / ticks) / 1000.0)
+                               + " crossings/tick, "
+                               + (elapsed / grader.numCrossings)
+                               + " ns/crossing");
+        }
     }
 
+    /**
+     * Move <i>adults</i> adults and <i>children</i> children from Oahu to
+     * Molokai, reporting every crossing to <i>b</i>, and return once everyone
+     * is on Molokai and every thread has finished. If there are adults, there
+     * must be at least two children.
+     */
     public static void begin( int adults, int children, BoatGrader b )
     {
-        // Store the externally generated autograder in a class
-        // variable to be accessible by children.
+        Lib.assertTrue(adults >= 0 && children >= 0);
+        Lib.assertTrue(adults == 0 || children >= 2);
+
+        new Boat(adults, children, b).run();
+    }
+
+    private Boat(int adults, int children, BoatGrader b)
+    {
+        // Store the externally generated autograder to be accessible by
+        // every person.
         bg = b;
+        numAdultsOnOahu = adults;
+        numChildrenOnOahu = children;
+    }
+
+    private void run()
+    {
+        KThread[] people = new KThread[numAdultsOnOahu + numChildrenOnOahu];
+        int n = 0;
 
-        // Instantiate global variables here
-        
-        numAdultsOnOahu = numChildrenOnOahu = numAdultsOnMolokai = numChildrenOnMolokai = 0;
-        boatLocation = "Oahu";
-        pilotSeat = new Lock();
-        terminationLock = new Lock();
-        canRowToMolokai = new Condition2(pilotSeat);
-        canRowToOahu = new Condition2(pilotSeat);
-        passengerCondition = new Condition2(pilotSeat);
-        terminationCondition = new Condition2(terminationLock);
-        hasChildPilot = false;
-        hasPassenger = false;
-        // Create threads here. See section 3.4 of the Nachos for Java
-        // Walkthrough linked from the projects page.
-
-        for (int i = 0; i< children; i++) {
-            KThread child = new KThread(new Runnable() {
+        for (int i = 0; i < numChildrenOnOahu; i++) {
+            people[n++] = new KThread(new Runnable() {
                 public void run() {
                     ChildItinerary();
                 }
-            });
-            child.fork();
+            }).setName("Child");
         }
 
-        for (int j = 0; j< adults; j++) {
-            KThread adult = new KThread(new Runnable() {
+        for (int j = 0; j < numAdultsOnOahu; j++) {
+            people[n++] = new KThread(new Runnable() {
                 public void run() {
                     AdultItinerary();
                 }
-            });         
-            adult.setName("Adult");
-            adult.fork();
+            }).setName("Adult");
         }
 
-        while (true) {
-            if (numChildrenOnMolokai == children && numAdultsOnMolokai == adults) {
-                break;
-            } else {
-                pilotSeat.acquire();
-                canRowToOahu.wake();
-                pilotSeat.release();
-                terminationLock.acquire();
-                terminationCondition.sleep();
-            }
+        lock.acquire();
+        dispatchOahu(false);
+        lock.release();
+
+        for (int i = 0; i < people.length; i++)
+            people[i].fork();
+
+        finished.await();
+        KThread.joinAll(people);
+    }
+
+    /**
+     * The boat is on Oahu: decide who takes it next, and wake them unless
+     * the caller is a child on Oahu, which will take a child's turn itself.
+     */
+    private void dispatchOahu(boolean callerIsChildOnOahu)
+    {
+        if (numChildrenOnOahu >= 2) {
+            turn = turnPilot;
+        }
+        else if (numAdultsOnOahu > 0) {
+            turn = turnAdult;
+            adultsOnOahu.wake();
+            return;
+        }
+        else if (numChildrenOnOahu == 1) {
+            turn = turnAlone;
+        }
+        else {
+            finish();
+            return;
         }
+
+        if (!callerIsChildOnOahu)
+            childrenOnOahu.wake();
+    }
+
+    /**
+     * Everyone is on Molokai. Report it, and release every waiting thread so
+     * that it can finish.
+     */
+    private void finish()
+    {
+        Lib.assertTrue(!done);
+        done = true;
+        turn = turnNone;
+
+        childrenOnOahu.wakeAll();
+        adultsOnOahu.wakeAll();
+        childrenOnMolokai.wakeAll();
+        finished.countDown();
     }
 
-    static void AdultItinerary()
+    void AdultItinerary()
     {
-        /* This is where you should put your solutions. Make calls
-           to the BoatGrader to show that it is synchronized. For
-           example:
-               bg.AdultRowToMolokai();
-           indicates that an adult has rowed the boat across to Molokai
-        */
-        pilotSeat.acquire();
-        numAdultsOnOahu++;
-        String location = "Oahu";
-        while (true) {
-            if (location == "Oahu" && Boat.boatLocation == "Oahu") {
-                if (numChildrenOnOahu == 1 && hasChildPilot == false) {
-                    numAdultsOnOahu--;
-                    bg.AdultRowToMolokai();
-                    numAdultsOnMolokai++;
-                    Boat.boatLocation = "Molokai";
-                    location = "Molokai";
-                    if (numChildrenOnMolokai != 0) {
-                        //there is a child to bring the boat back to Oahu
-                        //Adult has been succesfully transported across
-                        canRowToOahu.wake();
-                        pilotSeat.release();
-                        break;
-                    } else {
-                        numAdultsOnMolokai--;
-                        bg.AdultRowToOahu();
-                        numAdultsOnOahu++;
-                        Boat.boatLocation = "Oahu";
-                        location = "Oahu";
-                        canRowToMolokai.sleep();
-                        continue;
-                    }
-                } else if (numChildrenOnOahu > 0) {
-                    canRowToMolokai.wake();
-                } 
-            } 
-            canRowToMolokai.sleep();
+        lock.acquire();
+
+        while (!done && turn != turnAdult)
+            adultsOnOahu.sleep();
+
+        if (!done) {
+            numAdultsOnOahu--;
+            bg.AdultRowToMolokai();
+            numAdultsOnMolokai++;
+
+            // a child stayed on Oahu, so one must have crossed earlier
+            Lib.assertTrue(numChildrenOnMolokai > 0);
+            turn = turnReturn;
+            childrenOnMolokai.wake();
         }
+
+        lock.release();
     }
 
-    static void ChildItinerary()
+    void ChildItinerary()
     {
-        boolean terminationPossible;
-        pilotSeat.acquire();
-        numChildrenOnOahu++;
-        String location = "Oahu";
-        while (true) {
-            terminationPossible = false;
-            if (location == "Oahu") {
-                if (Boat.boatLocation == "Oahu") {
-                    if (numChildrenOnOahu == 1 && !hasChildPilot) {
-                        canRowToMolokai.wake();
-                        canRowToMolokai.sleep();
-                    } else if (hasChildPilot && !hasPassenger) {
-                        if (numChildrenOnOahu == 2 && numAdultsOnOahu == 0) {
-                            terminationPossible = true;
-                        }
-                        passengerCondition.wake();
-                        hasPassenger = true;
-                        passengerCondition.sleep();
-                        numChildrenOnOahu--;
-                        bg.ChildRideToMolokai();
-                        numChildrenOnMolokai++;
-                        location = "Molokai";
-                        hasChildPilot = false;
-                        hasPassenger = false;
-                        if (terminationPossible) {
-                            //possible termination condition
-                            //child was the last one to leave Oahu at that time
-                            terminationLock.acquire();
-                            terminationCondition.wake();
-                            terminationLock.release();
-                        } else {
-                            canRowToOahu.wake();
-                        }
-                        canRowToOahu.sleep();
-                    } else if (!hasChildPilot) {
-                        hasChildPilot = true;
-                        canRowToMolokai.wake();
-                        passengerCondition.sleep();
-                        numChildrenOnOahu--;
-                        bg.ChildRowToMolokai();
-                        numChildrenOnMolokai++;
-                        location = "Molokai";
-                        passengerCondition.wake();
-                        Boat.boatLocation = "Molokai";
-                        canRowToOahu.sleep();
-                    } else {
-                        canRowToMolokai.sleep();
-                    }
-                } else { 
-                    canRowToMolokai.sleep();
+        lock.acquire();
+
+        boolean onOahu = true;
+        while (!done) {
+            if (onOahu && turn == turnPilot) {
+                numChildrenOnOahu--;
+                turn = turnPassenger;
+                childrenOnOahu.wake();
+                while (turn != turnBoarded)
+                    pilotSeat.sleep();
+
+                bg.ChildRowToMolokai();
+                numChildrenOnMolokai++;
+                onOahu = false;
+                turn = turnArrived;
+                passengerSeat.wake();
+            }
+            else if (onOahu && turn == turnPassenger) {
+                numChildrenOnOahu--;
+                boolean last = (numChildrenOnOahu == 0 && numAdultsOnOahu == 0);
+                turn = turnBoarded;
+                pilotSeat.wake();
+                while (turn != turnArrived)
+                    passengerSeat.sleep();
+
+                bg.ChildRideToMolokai();
+                numChildrenOnMolokai++;
+                onOahu = false;
+
+                if (last) {
+                    finish();
                 }
-            } else {
-                if (Boat.boatLocation == "Molokai") {
-                    Boat.boatLocation = "Oahu";
-                    location = "Oahu";
-                    numChildrenOnMolokai--;
-                    bg.ChildRowToOahu();
-                    numChildrenOnOahu++;
-                    canRowToMolokai.wake();
-                    canRowToMolokai.sleep();
-                } else {
-                    canRowToOahu.sleep();
+                else {
+                    // take the boat straight back rather than waking another
+                    turn = turnReturn;
                 }
             }
+            else if (onOahu && turn == turnAlone) {
+                numChildrenOnOahu--;
+                bg.ChildRowToMolokai();
+                numChildrenOnMolokai++;
+                onOahu = false;
+                finish();
+            }
+            else if (!onOahu && turn == turnReturn) {
+                numChildrenOnMolokai--;
+                bg.ChildRowToOahu();
+                numChildrenOnOahu++;
+                onOahu = true;
+                dispatchOahu(true);
+            }
+            else if (onOahu) {
+                childrenOnOahu.sleep();
+            }
+            else {
+                childrenOnMolokai.sleep();
+            }
         }
+
+        lock.release();
     }
 
     static void SampleItinerary()
@@ -203,10 +289,100 @@ public class Boat
         // have a single thread calculate a solution and then just play
         // it back at the autograder -- you will be caught.
         System.out.println("\n ***Everyone piles on the boat and goes to Molokai***");
+        BoatGrader bg = new BoatGrader();
         bg.AdultRowToMolokai();
         bg.ChildRideToMolokai();
         bg.AdultRideToMolokai();
         bg.ChildRideToMolokai();
     }
-    
+
+    /**
+     * A grader that checks every crossing is possible and counts them,
+     * instead of printing them.
+     */
+    private static class CheckingGrader extends BoatGrader
+    {
+        CheckingGrader(int adults, int children)
+        {
+            adultsOnOahu = adults;
+            childrenOnOahu = children;
+        }
+
+        void checkFinished()
+        {
+            Lib.assertTrue(adultsOnOahu == 0 && childrenOnOahu == 0);
+        }
+
+        public void ChildRowToMolokai()
+        {
+            cross(true);
+            Lib.assertTrue(childrenOnOahu-- > 0);
+            childrenOnMolokai++;
+            passengerDue = true;
+        }
+
+        public void ChildRowToOahu()
+        {
+            cross(false);
+            Lib.assertTrue(childrenOnMolokai-- > 0);
+            childrenOnOahu++;
+            passengerDue = true;
+        }
+
+        public void ChildRideToMolokai()
+        {
+            Lib.assertTrue(passengerDue && !boatOnOahu);
+            passengerDue = false;
+            Lib.assertTrue(childrenOnOahu-- > 0);
+            childrenOnMolokai++;
+        }
+
+        public void ChildRideToOahu()
+        {
+            Lib.assertTrue(passengerDue && boatOnOahu);
+            passengerDue = false;
+            Lib.assertTrue(childrenOnMolokai-- > 0);
+            childrenOnOahu++;
+        }
+
+        public void AdultRowToMolokai()
+        {
+            cross(true);
+            Lib.assertTrue(adultsOnOahu-- > 0);
+            adultsOnMolokai++;
+        }
+
+        public void AdultRowToOahu()
+        {
+            cross(false);
+            Lib.assertTrue(adultsOnMolokai-- > 0);
+            adultsOnOahu++;
+        }
+
+        public void AdultRideToMolokai()
+        {
+            Lib.assertNotReached("an adult cannot share the boat");
+        }
+
+        public void AdultRideToOahu()
+        {
+            Lib.assertNotReached("an adult cannot share the boat");
+        }
+
+        /** The boat crosses with its pilot. */
+        private void cross(boolean fromOahu)
+        {
+            Lib.assertTrue(boatOnOahu == fromOahu);
+            boatOnOahu = !fromOahu;
+            passengerDue = false;
+            numCrossings++;
+        }
+
+        int numCrossings = 0;
+        private int adultsOnOahu, childrenOnOahu;
+        private int adultsOnMolokai = 0, childrenOnMolokai = 0;
+        private boolean boatOnOahu = true;
+        /** A child has just piloted the boat, and may have a passenger. */
+        private boolean passengerDue = false;
+    }
 }
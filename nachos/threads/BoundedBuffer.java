@@ -0,0 +1,106 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * The bookkeeping shared by <tt>Channel</tt> and <tt>BoundedSynchList</tt>:
+ * the head, tail and count of a ring of fixed capacity, a lock, and the
+ * conditions that producers and consumers wait on. Subclasses keep the ring
+ * itself, in whatever array type suits them, and hold the lock while they
+ * use it.
+ *
+ * <p>
+ * Producers and consumers that add or remove many elements under a single
+ * acquisition of the lock wake at most one waiting thread on each side for
+ * the whole batch. A woken thread that leaves elements or room behind wakes
+ * the next one.
+ */
+abstract class BoundedBuffer {
+    /**
+     * Allocate a new bounded buffer.
+     *
+     * @param	capacity	the number of elements the buffer can hold.
+     */
+    BoundedBuffer(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	this.capacity = capacity;
+	// profile each kind of buffer separately, not as this one line
+	lock = new Lock(getClass().getName());
+	notEmpty = new Condition2(lock);
+	notFull = new Condition2(lock);
+    }
+
+    /**
+     * Wait until there is room for at least one element.
+     */
+    void waitForRoom() {
+	while (count == capacity) {
+	    waitingProducers++;
+	    notFull.sleep();
+	    waitingProducers--;
+	}
+    }
+
+    /**
+     * Wait until there is at least one element.
+     */
+    void waitForElements() {
+	while (count == 0) {
+	    waitingConsumers++;
+	    notEmpty.sleep();
+	    waitingConsumers--;
+	}
+    }
+
+    /**
+     * Note that <i>amount</i> elements were stored starting at
+     * <tt>tail</tt>.
+     */
+    void advanceTail(int amount) {
+	tail = (tail + amount) % capacity;
+	count += amount;
+    }
+
+    /**
+     * Note that <i>amount</i> elements were taken starting at
+     * <tt>head</tt>.
+     */
+    void advanceHead(int amount) {
+	head = (head + amount) % capacity;
+	count -= amount;
+    }
+
+    /**
+     * Elements were added. Wake one consumer, and pass the wakeup on to the
+     * next producer if there is still room.
+     */
+    void added() {
+	if (waitingConsumers > 0)
+	    notEmpty.wake();
+	if (count < capacity && waitingProducers > 0)
+	    notFull.wake();
+    }
+
+    /**
+     * Elements were removed. Wake one producer, and pass the wakeup on to the
+     * next consumer if elements are left.
+     */
+    void removed() {
+	if (waitingProducers > 0)
+	    notFull.wake();
+	if (count > 0 && waitingConsumers > 0)
+	    notEmpty.wake();
+    }
+
+    /** The number of elements the ring can hold. */
+    final int capacity;
+    /** The index of the oldest element, the next free slot, and the size. */
+    int head = 0, tail = 0, count = 0;
+    /** Held while the ring is used. */
+    final Lock lock;
+
+    private int waitingProducers = 0, waitingConsumers = 0;
+    private Condition2 notEmpty;
+    private Condition2 notFull;
+}
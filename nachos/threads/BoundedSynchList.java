@@ -0,0 +1,193 @@
+package nachos.threads;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.ArrayList;
+import nachos.machine.*;
+
+/**
+ * A synchronized queue with a fixed capacity. Unlike <tt>SynchList</tt>,
+ * adding to a full queue blocks until there is room, so a fast producer
+ * cannot get arbitrarily far ahead of its consumer.
+ *
+ * <p>
+ * The queue is a ring of object references, so adding an object allocates
+ * nothing. <tt>addAll()</tt> and <tt>drainTo()</tt> move many objects under
+ * a single acquisition of the lock.
+ *
+ * @see	nachos.threads.BoundedBuffer
+ */
+public class BoundedSynchList<T> extends BoundedBuffer {
+    /**
+     * Allocate a new bounded synchronized queue.
+     *
+     * @param	capacity	the number of objects the queue can hold.
+     */
+    public BoundedSynchList(int capacity) {
+	super(capacity);
+
+	items = new Object[capacity];
+    }
+
+    /**
+     * Add the specified object to the end of the queue, waiting until there
+     * is room if necessary. If another thread is waiting in
+     * <tt>removeFirst()</tt> or <tt>drainTo()</tt>, it is woken up.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     */
+    public void add(T o) {
+	Lib.assertTrue(o != null);
+
+	lock.acquire();
+	waitForRoom();
+	append(o);
+	added();
+	lock.release();
+    }
+
+    /**
+     * Add every object in <i>c</i> to the end of the queue, in iteration
+     * order, waiting for room as often as necessary.
+     *
+     * @param	c	the objects to add. None may be <tt>null</tt>.
+     */
+    public void addAll(Collection<? extends T> c) {
+	Iterator<? extends T> i = c.iterator();
+	if (!i.hasNext())
+	    return;
+
+	lock.acquire();
+	while (i.hasNext()) {
+	    waitForRoom();
+	    while (count < capacity && i.hasNext()) {
+		T o = i.next();
+		Lib.assertTrue(o != null);
+		append(o);
+	    }
+	    added();
+	}
+	lock.release();
+    }
+
+    /**
+     * Remove an object from the front of the queue, blocking until the queue
+     * is non-empty if necessary.
+     *
+     * @return	the element removed from the front of the queue.
+     */
+    public T removeFirst() {
+	lock.acquire();
+	waitForElements();
+	T o = take();
+	removed();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove up to <i>max</i> objects from the front of the queue and add
+     * them, in order, to <i>c</i>. Blocks until the queue is non-empty if
+     * necessary, but not for more objects after that.
+     *
+     * @param	c	the collection to add the removed objects to.
+     * @param	max	the most objects to remove. Must be positive.
+     * @return	the number of objects removed, at least 1.
+     */
+    public int drainTo(Collection<? super T> c, int max) {
+	Lib.assertTrue(max > 0);
+
+	lock.acquire();
+	waitForElements();
+	int amount = Math.min(max, count);
+	for (int i=0; i<amount; i++)
+	    c.add(take());
+	removed();
+	lock.release();
+
+	return amount;
+    }
+
+    /**
+     * Return the number of objects the queue can hold.
+     *
+     * @return	the capacity of the queue.
+     */
+    public int capacity() {
+	return capacity;
+    }
+
+    private void append(T o) {
+	items[tail] = o;
+	advanceTail(1);
+    }
+
+    /**
+     * Only <tt>append()</tt> stores into <tt>items</tt>, so every element is
+     * a <tt>T</tt>.
+     */
+    @SuppressWarnings("unchecked")
+    private T take() {
+	T o = (T) items[head];
+	items[head] = null;
+	advanceHead(1);
+	return o;
+    }
+
+    /**
+     * Test that objects arrive in order through <tt>add()</tt>,
+     * <tt>addAll()</tt>, <tt>removeFirst()</tt> and <tt>drainTo()</tt>, and
+     * that a producer blocks while the queue is full.
+     */
+    public static void selfTest() {
+	final BoundedSynchList<Integer> list = new BoundedSynchList<Integer>(8);
+	final int numObjects = 500;
+	final boolean[] producerDone = new boolean[1];
+
+	KThread producer = new KThread(new Runnable() {
+		public void run() {
+		    ArrayList<Integer> batch = new ArrayList<Integer>();
+		    for (int next=0; next<numObjects; ) {
+			if (Lib.random(3) == 0) {
+			    list.add(new Integer(next++));
+			}
+			else {
+			    batch.clear();
+			    int length = Math.min(1 + Lib.random(20),
+						  numObjects - next);
+			    for (int i=0; i<length; i++)
+				batch.add(new Integer(next++));
+			    list.addAll(batch);
+			}
+		    }
+		    producerDone[0] = true;
+		}
+	    }).setName("producer");
+	producer.fork();
+
+	// the producer fills the queue and blocks
+	ThreadedKernel.alarm.waitUntil(1000);
+	Lib.assertTrue(!producerDone[0]);
+
+	// drain into a wider collection than the element type
+	ArrayList<Number> out = new ArrayList<Number>();
+	for (int next=0; next<numObjects; ) {
+	    if (Lib.random(3) == 0) {
+		Lib.assertTrue(list.removeFirst().intValue() == next++);
+	    }
+	    else {
+		out.clear();
+		int amount = list.drainTo(out, 1 + Lib.random(12));
+		Lib.assertTrue(amount == out.size());
+		for (int i=0; i<amount; i++)
+		    Lib.assertTrue(out.get(i).intValue() == next++);
+	    }
+	}
+
+	producer.join();
+	Lib.assertTrue(producerDone[0]);
+    }
+
+    private Object[] items;
+}
@@ -0,0 +1,407 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.TreeSet;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * A completely fair scheduler. Each thread accumulates <i>virtual
+ * runtime</i>: the simulated ticks it has spent on the processor, scaled down
+ * by its weight. The next thread to be dequeued is always the waiting thread
+ * with the least virtual runtime, so over time every thread receives processor
+ * time in proportion to its weight.
+ *
+ * <p>
+ * A thread's weight is derived from its nice value, which is its priority as
+ * set by <tt>setPriority()</tt>: nice values range from -20 (heaviest) to 19
+ * (lightest), and each step changes the weight by about 25%. A thread with
+ * nice value 0 has weight <tt>niceZeroWeight</tt>, and its virtual runtime
+ * advances at the same rate as simulated time.
+ *
+ * <p>
+ * Processor time is charged when the running thread joins a queue, and
+ * otherwise at every context switch and every timer interrupt. A thread that
+ * has run for at least <tt>CFSScheduler.slice</tt> ticks (from
+ * <tt>nachos.conf</tt>) since it was dispatched is preempted at the next
+ * timer interrupt.
+ *
+ * <p>
+ * Each queue keeps its waiting threads in a red-black tree ordered by virtual
+ * runtime, so every queue operation takes O(log n) time. A thread that was
+ * blocked is placed no further back than half a slice behind the least
+ * virtual runtime in the queue, so sleeping does not let a thread save up
+ * processor time.
+ */
+public class CFSScheduler extends Scheduler {
+    /**
+     * Allocate a new completely fair scheduler.
+     */
+    public CFSScheduler() {
+	slice = Config.getInteger("CFSScheduler.slice", Stats.TimerTicks);
+	Lib.assertTrue(slice > 0);
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param	transferPriority	ignored. Threads do not donate virtual
+     *					runtime.
+     * @return	a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue();
+    }
+
+    /**
+     * Return the nice value of the specified thread.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).nice;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Set the nice value of the specified thread.
+     */
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getThreadState(thread).nice = priority;
+    }
+
+    /**
+     * Lower the nice value of the current thread, giving it more weight.
+     */
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Raise the nice value of the current thread, giving it less weight.
+     */
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Charge <i>previous</i> for the time it ran, unless it was already
+     * charged when it joined a queue, and start the clock for <i>next</i>.
+     * A thread in a queue must not be charged, since its virtual runtime is
+     * its key in the tree.
+     */
+    public void contextSwitch(KThread previous, KThread next) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+
+	ThreadState previousState = getThreadState(previous);
+	if (!previousState.charged)
+	    previousState.charge(time);
+
+	ThreadState state = getThreadState(next);
+	state.charged = false;
+	state.execStart = time;
+	state.sliceStart = time;
+    }
+
+    /**
+     * Charge the current thread for the time it has run, and preempt it if
+     * it has used up its slice.
+     */
+    public boolean timerInterrupt(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+
+	ThreadState state = getThreadState(thread);
+	state.charge(time);
+
+	return (time - state.sliceStart >= slice);
+    }
+
+    /**
+     * The default nice value for a new thread.
+     */
+    public static final int priorityDefault = 0;
+    /**
+     * The lowest nice value, which gives the most weight.
+     */
+    public static final int priorityMinimum = -20;
+    /**
+     * The highest nice value, which gives the least weight.
+     */
+    public static final int priorityMaximum = 19;
+
+    /**
+     * The weight of a thread with nice value 0.
+     */
+    public static final int niceZeroWeight = 1024;
+
+    /**
+     * The weight of each nice value, from -20 to 19. Each step is a factor of
+     * about 1.25.
+     */
+    private static final int[] niceToWeight = {
+	/* -20 */ 88761, 71755, 56483, 46273, 36291,
+	/* -15 */ 29154, 23254, 18705, 14949, 11916,
+	/* -10 */ 9548, 7620, 6100, 4904, 3906,
+	/*  -5 */ 3121, 2501, 1991, 1586, 1277,
+	/*   0 */ 1024, 820, 655, 526, 423,
+	/*   5 */ 335, 272, 215, 172, 137,
+	/*  10 */ 110, 87, 70, 56, 45,
+	/*  15 */ 36, 29, 23, 18, 15,
+    };
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the least
+     * virtual runtime. Ties go to the thread that has been waiting longest.
+     */
+    protected class FairQueue extends ThreadQueue {
+	/**
+	 * Add a thread to the tree. The current thread is charged for the
+	 * time it has run first, since its virtual runtime must not change
+	 * while it is in the tree. A thread being added by some other thread
+	 * has just been woken up, and is placed no more than half a slice
+	 * behind the least virtual runtime in this queue.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (thread == KThread.currentThread()) {
+		state.charge(Machine.timer().getTime());
+		state.charged = true;
+	    }
+	    else {
+		state.vruntime = Math.max(state.vruntime,
+					  minVruntime - slice/2);
+	    }
+
+	    state.sequence = numInserted++;
+	    waitQueue.add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = waitQueue.pollFirst();
+	    if (state == null)
+		return null;
+
+	    minVruntime = Math.max(minVruntime, state.vruntime);
+	    return state.thread;
+	}
+
+	/**
+	 * Remove a thread from the tree. Another thread in the tree may compare
+	 * equal to it, so check that the thread itself is there first.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (waitQueue.ceiling(state) != state)
+		return false;
+
+	    return waitQueue.remove(state);
+	}
+
+	public int readyAll() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    int count = waitQueue.size();
+	    for (Iterator<ThreadState> i=waitQueue.iterator(); i.hasNext(); )
+		i.next().thread.ready();
+	    waitQueue.clear();
+
+	    return count;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(waitQueue.isEmpty());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=waitQueue.iterator(); i.hasNext(); ) {
+		ThreadState state = i.next();
+		System.out.print(state.thread + " [" + state.vruntime + "] ");
+	    }
+	}
+
+	private TreeSet<ThreadState> waitQueue = new TreeSet<ThreadState>();
+	/** The least virtual runtime this queue has dequeued so far. */
+	private long minVruntime = 0;
+	private long numInserted = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its nice value and its virtual
+     * runtime.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState implements Comparable<ThreadState> {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Return the weight of the associated thread.
+	 *
+	 * @return	the weight of the associated thread.
+	 */
+	public int getWeight() {
+	    return niceToWeight[nice - priorityMinimum];
+	}
+
+	/**
+	 * Charge the associated thread for the processor time it has used
+	 * since it was last charged.
+	 *
+	 * @param	time	the current time.
+	 */
+	void charge(long time) {
+	    addRuntime(time - execStart);
+	    execStart = time;
+	}
+
+	/**
+	 * Add <i>ticks</i> of processor time, scaled by weight, to the
+	 * virtual runtime of the associated thread.
+	 */
+	void addRuntime(long ticks) {
+	    vruntime += ticks * niceZeroWeight / getWeight();
+	}
+
+	public int compareTo(ThreadState state) {
+	    if (vruntime != state.vruntime)
+		return (vruntime < state.vruntime) ? -1 : 1;
+	    else if (sequence != state.sequence)
+		return (sequence < state.sequence) ? -1 : 1;
+	    else
+		return 0;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The nice value of the associated thread. */
+	protected int nice = priorityDefault;
+	/** The weighted processor time used by the associated thread. */
+	protected long vruntime = 0;
+
+	long execStart = 0;
+	long sliceStart = 0;
+	long sequence;
+	/** <tt>true</tt> once the thread is charged for its current run. */
+	boolean charged = false;
+    }
+
+    /**
+     * Test that a few thousand threads share the processor in proportion to
+     * their weights. Processor time is charged directly, in equal amounts
+     * each time a thread is dequeued.
+     */
+    public static void selfTest() {
+	CFSScheduler scheduler = new CFSScheduler();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	final int n = 2000, dispatches = 50*n, ticks = 100;
+
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	HashMap<KThread, Integer> index = new HashMap<KThread, Integer>();
+	for (int i=0; i<n; i++) {
+	    KThread thread = new KThread().setName("cfs" + i);
+	    index.put(thread, i);
+	    scheduler.setPriority(thread, (i%2 == 0) ? 0 : 5);
+	    queue.waitForAccess(thread);
+	}
+
+	int[] runs = new int[n];
+	for (int i=0; i<dispatches; i++) {
+	    KThread thread = queue.nextThread();
+	    runs[index.get(thread)]++;
+	    scheduler.getThreadState(thread).addRuntime(ticks);
+	    queue.waitForAccess(thread);
+	}
+
+	// every thread with the same nice value has run as often, to within
+	// one dispatch, and the two groups share in proportion to weight
+	long[] total = new long[2];
+	int[] min = { Integer.MAX_VALUE, Integer.MAX_VALUE }, max = { 0, 0 };
+	for (int i=0; i<n; i++) {
+	    total[i%2] += runs[i];
+	    min[i%2] = Math.min(min[i%2], runs[i]);
+	    max[i%2] = Math.max(max[i%2], runs[i]);
+	}
+
+	for (int j=0; j<2; j++)
+	    Lib.assertTrue(max[j] - min[j] <= 1);
+
+	double ratio = (double) total[0] / total[1];
+	double expected = (double) niceToWeight[20] / niceToWeight[25];
+	Lib.assertTrue(Math.abs(ratio - expected) / expected < 0.05);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private long slice;
+}
@@ -0,0 +1,229 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>channel</i> is a bounded buffer of 32-bit words. Unlike a
+ * <tt>Communicator</tt>, a speaker does not wait for a listener: it only
+ * blocks while the buffer is full, and a listener only blocks while the buffer
+ * is empty. Words are received in the order they were spoken.
+ *
+ * <p>
+ * The buffer is a ring of <tt>int</tt>s, and words can be spoken and listened
+ * for in batches, so a producer and a consumer can exchange a whole buffer of
+ * words for each pair of context switches.
+ *
+ * @see	nachos.threads.BoundedBuffer
+ */
+public class Channel extends BoundedBuffer {
+    /**
+     * Allocate a new channel.
+     *
+     * @param	capacity	the number of words the channel can hold.
+     */
+    public Channel(int capacity) {
+	super(capacity);
+
+	buffer = new int[capacity];
+    }
+
+    /**
+     * Add <i>word</i> to the channel, waiting until there is room for it.
+     *
+     * @param	word	the integer to transfer.
+     */
+    public void speak(int word) {
+	lock.acquire();
+
+	waitForRoom();
+	buffer[tail] = word;
+	advanceTail(1);
+	added();
+
+	lock.release();
+    }
+
+    /**
+     * Add all of <i>words</i> to the channel, in order. Waits for room as
+     * often as necessary; other speakers may interleave their words between
+     * those waits.
+     *
+     * @param	words	the integers to transfer.
+     */
+    public void speak(int[] words) {
+	speak(words, 0, words.length);
+    }
+
+    /**
+     * Add <i>length</i> words, starting at <tt>words[offset]</tt>, to the
+     * channel, in order.
+     *
+     * @param	words	the array holding the integers to transfer.
+     * @param	offset	the index of the first integer to transfer.
+     * @param	length	the number of integers to transfer.
+     */
+    public void speak(int[] words, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= words.length);
+
+	lock.acquire();
+
+	while (length > 0) {
+	    waitForRoom();
+
+	    // copy as much as fits, in at most two pieces around the ring
+	    int amount = Math.min(length, capacity - count);
+	    int first = Math.min(amount, capacity - tail);
+	    System.arraycopy(words, offset, buffer, tail, first);
+	    System.arraycopy(words, offset+first, buffer, 0, amount-first);
+
+	    advanceTail(amount);
+	    offset += amount;
+	    length -= amount;
+	    added();
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Remove the oldest word from the channel, waiting until there is one.
+     *
+     * @return	the integer transferred.
+     */
+    public int listen() {
+	lock.acquire();
+
+	waitForElements();
+	int word = buffer[head];
+	advanceHead(1);
+	removed();
+
+	lock.release();
+	return word;
+    }
+
+    /**
+     * Remove up to <tt>out.length</tt> words from the channel into
+     * <i>out</i>, waiting until there is at least one.
+     *
+     * @param	out	the array to receive the integers.
+     * @return	the number of integers received, at least 1 unless
+     *		<tt>out</tt> is empty.
+     */
+    public int listen(int[] out) {
+	return listen(out, 0, out.length);
+    }
+
+    /**
+     * Remove up to <i>length</i> words from the channel into <i>out</i>,
+     * starting at <tt>out[offset]</tt>, waiting until there is at least one.
+     *
+     * @param	out	the array to receive the integers.
+     * @param	offset	the index at which to store the first integer.
+     * @param	length	the maximum number of integers to receive.
+     * @return	the number of integers received, at least 1 unless
+     *		<i>length</i> is 0.
+     */
+    public int listen(int[] out, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= out.length);
+
+	if (length == 0)
+	    return 0;
+
+	lock.acquire();
+
+	waitForElements();
+
+	int amount = Math.min(length, count);
+	int first = Math.min(amount, capacity - head);
+	System.arraycopy(buffer, head, out, offset, first);
+	System.arraycopy(buffer, 0, out, offset+first, amount-first);
+
+	advanceHead(amount);
+	removed();
+
+	lock.release();
+	return amount;
+    }
+
+    /**
+     * Test that words arrive in order and none are lost, when words are sent
+     * one at a time and in batches larger and smaller than the buffer, and
+     * when several speakers and listeners share a channel.
+     */
+    public static void selfTest() {
+	final Channel channel = new Channel(16);
+	final int numWords = 1000;
+
+	new KThread(new Runnable() {
+		public void run() {
+		    int[] words = new int[40];
+		    int next = 0;
+		    while (next < numWords) {
+			int length = Math.min(1 + Lib.random(words.length),
+					      numWords - next);
+			for (int i=0; i<length; i++)
+			    words[i] = next++;
+
+			if (length == 1)
+			    channel.speak(words[0]);
+			else
+			    channel.speak(words, 0, length);
+		    }
+		}
+	    }).setName("speaker").fork();
+
+	int[] out = new int[7];
+	for (int next=0; next<numWords; ) {
+	    if (Lib.random(4) == 0) {
+		Lib.assertTrue(channel.listen() == next++);
+	    }
+	    else {
+		int amount = channel.listen(out);
+		for (int i=0; i<amount; i++)
+		    Lib.assertTrue(out[i] == next++);
+	    }
+	}
+
+	final int numThreads = 4;
+	final Semaphore done = new Semaphore(0);
+	final long[] sum = new long[1];
+
+	for (int i=0; i<numThreads; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			int[] words = new int[numWords/numThreads];
+			for (int j=0; j<words.length; j++)
+			    words[j] = j;
+			channel.speak(words);
+			done.V();
+		    }
+		}).setName("speaker" + i).fork();
+
+	    new KThread(new Runnable() {
+		    public void run() {
+			int[] buf = new int[5];
+			for (int received=0; received<numWords/numThreads; ) {
+			    int amount = channel.listen(buf, 0,
+				Math.min(buf.length,
+					 numWords/numThreads - received));
+			    for (int j=0; j<amount; j++)
+				sum[0] += buf[j];
+			    received += amount;
+			}
+			done.V();
+		    }
+		}).setName("listener" + i).fork();
+	}
+
+	for (int i=0; i<2*numThreads; i++)
+	    done.P();
+
+	int perThread = numWords/numThreads;
+	Lib.assertTrue(sum[0] == (long) numThreads * perThread*(perThread-1)/2);
+    }
+
+    private int[] buffer;
+}
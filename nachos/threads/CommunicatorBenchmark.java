@@ -0,0 +1,228 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+
+/**
+ * Measures the cost of passing words between threads through a
+ * <tt>Communicator</tt>, a <tt>SynchList</tt>, a <tt>BoundedSynchList</tt>
+ * used in batches, and a <tt>Channel</tt> used one word at a time and in
+ * batches.
+ *
+ * <p>
+ * Each run has <i>N</i> speakers and <i>M</i> listeners sharing one
+ * transport, and reports the words delivered per simulated tick, the host
+ * nanoseconds per word, and the context switches per word. The runs use
+ * whatever scheduler is configured in <tt>ThreadedKernel.scheduler</tt>, and
+ * each result line names it, so running Nachos once per scheduler gives the
+ * full table.
+ */
+public class CommunicatorBenchmark {
+    /**
+     * Run every transport with each combination of speakers and listeners.
+     */
+    public static void benchmark() {
+	int[][] shapes = { { 1, 1 }, { 4, 4 }, { 8, 1 }, { 1, 8 } };
+
+	for (int i=0; i<shapes.length; i++) {
+	    int speakers = shapes[i][0], listeners = shapes[i][1];
+
+	    run(new CommunicatorTransport(), speakers, listeners);
+	    run(new SynchListTransport(), speakers, listeners);
+	    run(new BoundedSynchListTransport(), speakers, listeners);
+	    run(new ChannelTransport(false), speakers, listeners);
+	    run(new ChannelTransport(true), speakers, listeners);
+	}
+    }
+
+    /**
+     * Send <tt>numWords</tt> words from <i>speakers</i> threads to
+     * <i>listeners</i> threads through <i>transport</i>, check that every
+     * word arrived, and print the results.
+     */
+    private static void run(final Transport transport, final int speakers,
+			    final int listeners) {
+	final int wordsPerSpeaker = numWords / speakers;
+	final int total = wordsPerSpeaker * speakers;
+	final Semaphore done = new Semaphore(0);
+	final long[] sum = new long[1];
+
+	long startTicks = Machine.timer().getTime();
+	long startSwitches = KThread.getNumContextSwitches();
+	long startTime = System.nanoTime();
+
+	for (int i=0; i<speakers; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			int[] words = new int[batchSize];
+			for (int sent=0; sent<wordsPerSpeaker; ) {
+			    int length = Math.min(batchSize,
+						  wordsPerSpeaker - sent);
+			    for (int j=0; j<length; j++)
+				words[j] = sent + j;
+			    transport.send(words, length);
+			    sent += length;
+			}
+			done.V();
+		    }
+		}).setName("speaker" + i).fork();
+	}
+
+	for (int i=0; i<listeners; i++) {
+	    // spread the words as evenly as possible over the listeners
+	    final int quota = total/listeners + (i < total%listeners ? 1 : 0);
+
+	    new KThread(new Runnable() {
+		    public void run() {
+			int[] out = new int[batchSize];
+			for (int received=0; received<quota; ) {
+			    int amount = transport.receive(out,
+				Math.min(batchSize, quota - received));
+			    for (int j=0; j<amount; j++)
+				sum[0] += out[j];
+			    received += amount;
+			}
+			done.V();
+		    }
+		}).setName("listener" + i).fork();
+	}
+
+	for (int i=0; i<speakers+listeners; i++)
+	    done.P();
+
+	long elapsed = System.nanoTime() - startTime;
+	long ticks = Machine.timer().getTime() - startTicks;
+	long switches = KThread.getNumContextSwitches() - startSwitches;
+
+	Lib.assertTrue(sum[0] ==
+		       (long) speakers * wordsPerSpeaker*(wordsPerSpeaker-1)/2);
+
+	System.out.println(ThreadedKernel.scheduler.getClass().getName()
+			   + ": " + transport.getName() + ", "
+			   + speakers + "x" + listeners + ", "
+			   + total + " words, "
+			   + format((double) total / ticks) + " words/tick, "
+			   + (elapsed / total) + " ns/word, "
+			   + format((double) switches / total)
+			   + " switches/word");
+    }
+
+    private static String format(double x) {
+	return String.valueOf(Math.round(x * 1000) / 1000.0);
+    }
+
+    /**
+     * A way of passing words from one thread to another.
+     */
+    private static abstract class Transport {
+	/** Return the name to report for this transport. */
+	abstract String getName();
+
+	/** Send the first <i>length</i> words of <i>words</i>. */
+	abstract void send(int[] words, int length);
+
+	/**
+	 * Receive between 1 and <i>max</i> words into <i>out</i>, and return
+	 * how many were received.
+	 */
+	abstract int receive(int[] out, int max);
+    }
+
+    private static class CommunicatorTransport extends Transport {
+	String getName() {
+	    return "Communicator";
+	}
+
+	void send(int[] words, int length) {
+	    for (int i=0; i<length; i++)
+		communicator.speak(words[i]);
+	}
+
+	int receive(int[] out, int max) {
+	    out[0] = communicator.listen();
+	    return 1;
+	}
+
+	private Communicator communicator = new Communicator();
+    }
+
+    private static class SynchListTransport extends Transport {
+	String getName() {
+	    return "SynchList";
+	}
+
+	void send(int[] words, int length) {
+	    for (int i=0; i<length; i++)
+		list.add(new Integer(words[i]));
+	}
+
+	int receive(int[] out, int max) {
+	    out[0] = ((Integer) list.removeFirst()).intValue();
+	    return 1;
+	}
+
+	private SynchList list = new SynchList();
+    }
+
+    private static class BoundedSynchListTransport extends Transport {
+	String getName() {
+	    return "BoundedSynchList (batched)";
+	}
+
+	void send(int[] words, int length) {
+	    ArrayList<Integer> batch = new ArrayList<Integer>(length);
+	    for (int i=0; i<length; i++)
+		batch.add(new Integer(words[i]));
+	    list.addAll(batch);
+	}
+
+	int receive(int[] out, int max) {
+	    ArrayList<Integer> batch = new ArrayList<Integer>(max);
+	    int amount = list.drainTo(batch, max);
+	    for (int i=0; i<amount; i++)
+		out[i] = batch.get(i).intValue();
+	    return amount;
+	}
+
+	private BoundedSynchList<Integer> list =
+	    new BoundedSynchList<Integer>(channelCapacity);
+    }
+
+    private static class ChannelTransport extends Transport {
+	ChannelTransport(boolean batched) {
+	    this.batched = batched;
+	}
+
+	String getName() {
+	    return batched ? "Channel (batched)" : "Channel";
+	}
+
+	void send(int[] words, int length) {
+	    if (batched) {
+		channel.speak(words, 0, length);
+	    }
+	    else {
+		for (int i=0; i<length; i++)
+		    channel.speak(words[i]);
+	    }
+	}
+
+	int receive(int[] out, int max) {
+	    if (batched)
+		return channel.listen(out, 0, max);
+
+	    out[0] = channel.listen();
+	    return 1;
+	}
+
+	private boolean batched;
+	private Channel channel = new Channel(channelCapacity);
+    }
+
+    /** The number of words sent in each run. */
+    private static final int numWords = 4000;
+    /** The most words a speaker or listener passes to a batch operation. */
+    private static final int batchSize = 64;
+    private static final int channelCapacity = 256;
+}
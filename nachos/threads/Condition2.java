@@ -1,8 +1,6 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.LinkedList;
-import java.util.Queue;
 
 /**
  * An implementation of condition variables that disables interrupt()s for
@@ -24,7 +22,9 @@ public class Condition2 {
      */
     public Condition2(Lock conditionLock) {
 	   this.conditionLock = conditionLock;
-       waitQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+       // a condition variable has no owner for waiters to donate to; the
+       // thread last woken from it holds nothing
+       waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
     }
 
     /**
@@ -32,32 +32,54 @@ public class Condition2 {
      * variable until another thread wakes it using <tt>wake()</tt>. The
      * current thread must hold the associated lock. The thread will
      * automatically reacquire the lock before <tt>sleep()</tt> returns.
+     *
+     * <p>
+     * Interrupts are disabled before the lock is released, so a thread that
+     * acquires the lock and calls <tt>wake()</tt> will always find this thread
+     * on the queue.
      */
     public void sleep() {
     	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
+        boolean intStatus = Machine.interrupt().disable();
     	conditionLock.release();
-        Machine.interrupt().disable();
-        KThread currentThread = KThread.currentThread();
-        waitQueue.waitForAccess(currentThread);
+        waitQueue.waitForAccess(KThread.currentThread());
         KThread.sleep();
-        Machine.interrupt().enable();
+        Machine.interrupt().restore(intStatus);
     	conditionLock.acquire();
     }
 
+    /**
+     * Like <tt>sleep()</tt>, but give up waiting after <i>ticks</i> clock
+     * ticks. The thread reacquires the lock before returning either way.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the thread was woken by <tt>wake()</tt> or
+     *		<tt>wakeAll()</tt>, or <tt>false</tt> if the wait timed out.
+     */
+    public boolean sleepFor(long ticks) {
+    	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+        boolean intStatus = Machine.interrupt().disable();
+    	conditionLock.release();
+        boolean woken = ThreadedKernel.alarm.sleepOn(waitQueue, ticks);
+        Machine.interrupt().restore(intStatus);
+    	conditionLock.acquire();
+        return woken;
+    }
+
     /**
      * Wake up at most one thread sleeping on this condition variable. The
      * current thread must hold the associated lock.
      */
     public void wake() {
 	   Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-       Machine.interrupt().disable();
+       boolean intStatus = Machine.interrupt().disable();
        KThread next = waitQueue.nextThread();
-       if (next == null) {
-            return;
+       if (next != null) {
+            next.ready();
        }
-       next.ready();
-       Machine.interrupt().enable();
+       Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -66,13 +88,96 @@ public class Condition2 {
      */
     public void wakeAll() {
 	   Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-       Machine.interrupt().disable();
-       KThread next = waitQueue.nextThread();
-       while (next != null) {
-            next.ready();
-            next = waitQueue.nextThread();
-       }
-       Machine.interrupt().enable();
+       boolean intStatus = Machine.interrupt().disable();
+       waitQueue.readyAll();
+       Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Stress timed waits on semaphores, locks and condition variables. Many
+     * threads wait with short random timeouts while others signal at random
+     * times, so that timeouts race with wakeups. A thread readied twice, or
+     * a signal lost, fails an assertion or the final counts. Also check
+     * that <tt>wakeAll()</tt> wakes every sleeper.
+     */
+    public static void selfTest() {
+        Lib.assertTrue(!new Semaphore(0).P(100));
+
+        final Lock allLock = new Lock();
+        final Condition2 all = new Condition2(allLock);
+        final Semaphore woken = new Semaphore(0);
+        final int numSleepers = 8;
+        final int[] asleep = new int[1];
+
+        for (int i = 0; i < numSleepers; i++) {
+            new KThread(new Runnable() {
+                public void run() {
+                    allLock.acquire();
+                    asleep[0]++;
+                    all.sleep();
+                    allLock.release();
+                    woken.V();
+                }
+            }).setName("sleeper" + i).fork();
+        }
+        while (asleep[0] < numSleepers) {
+            KThread.yield();
+        }
+        allLock.acquire();
+        all.wakeAll();
+        allLock.release();
+        for (int i = 0; i < numSleepers; i++) {
+            woken.P();
+        }
+
+        final int numThreads = 10, numItems = 100, maxWait = 300;
+        final Lock lock = new Lock();
+        final Condition2 cond = new Condition2(lock);
+        final Semaphore sem = new Semaphore(0);
+        final Semaphore done = new Semaphore(0);
+        final int[] count = new int[4];     // queued, consumed, timeouts, taken
+
+        for (int i = 0; i < numThreads; i++) {
+            new KThread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < numItems / numThreads; j++) {
+                        lock.acquire();
+                        while (count[0] == 0) {
+                            if (!cond.sleepFor(1 + Lib.random(maxWait))) {
+                                count[2]++;
+                            }
+                        }
+                        count[0]--;
+                        count[1]++;
+                        lock.release();
+
+                        while (!sem.P(1 + Lib.random(maxWait))) {
+                            count[2]++;
+                        }
+                        count[3]++;
+                    }
+                    done.V();
+                }
+            }).setName("waiter" + i).fork();
+        }
+
+        for (int i = 0; i < numItems; i++) {
+            ThreadedKernel.alarm.waitUntil(Lib.random(2 * maxWait));
+            while (!lock.tryAcquire(1 + Lib.random(maxWait))) {
+                count[2]++;
+            }
+            count[0]++;
+            cond.wake();
+            lock.release();
+            sem.V();
+        }
+
+        for (int i = 0; i < numThreads; i++) {
+            done.P();
+        }
+        Lib.assertTrue(count[0] == 0 && count[1] == numItems
+                       && count[3] == numItems);
+        Lib.assertTrue(!sem.P(0) && count[2] > 0);
     }
 
     private Lock conditionLock;
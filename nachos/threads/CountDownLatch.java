@@ -0,0 +1,101 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>countdown latch</i> lets threads wait until some number of events have
+ * happened. The latch starts with a count; <tt>countDown()</tt> decrements
+ * it, and <tt>await()</tt> waits until it reaches zero. Once the count
+ * reaches zero, the latch stays open and <tt>await()</tt> returns
+ * immediately.
+ *
+ * <p>
+ * Waiting threads sleep on a single thread queue and are all made ready in one
+ * pass when the count reaches zero.
+ */
+public class CountDownLatch {
+    /**
+     * Allocate a new countdown latch.
+     *
+     * @param	count	the number of times <tt>countDown()</tt> must be called
+     *			before waiting threads are released.
+     */
+    public CountDownLatch(int count) {
+	Lib.assertTrue(count >= 0);
+
+	this.count = count;
+    }
+
+    /**
+     * Wait until the count reaches zero.
+     */
+    public void await() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (count > 0) {
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Decrement the count, releasing every waiting thread if it reaches zero.
+     * Has no effect if the count is already zero.
+     */
+    public void countDown() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (count > 0 && --count == 0)
+	    waitQueue.readyAll();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the current count. As with a semaphore, the count may have
+     * changed by the time the caller looks at it.
+     *
+     * @return	the current count.
+     */
+    public int getCount() {
+	return count;
+    }
+
+    /**
+     * Test that waiters are released only by the last <tt>countDown()</tt>,
+     * and that the latch then stays open.
+     */
+    public static void selfTest() {
+	final int numWorkers = 8;
+	final CountDownLatch start = new CountDownLatch(1);
+	final CountDownLatch finished = new CountDownLatch(numWorkers);
+	final int[] started = new int[1];
+
+	for (int i=0; i<numWorkers; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			start.await();
+			started[0]++;
+			finished.countDown();
+		    }
+		}).setName("latch" + i).fork();
+	}
+
+	ThreadedKernel.alarm.waitUntil(100);
+	Lib.assertTrue(started[0] == 0);
+
+	start.countDown();
+	finished.await();
+	Lib.assertTrue(started[0] == numWorkers && finished.getCount() == 0);
+
+	finished.await();
+	finished.countDown();
+	Lib.assertTrue(finished.getCount() == 0);
+    }
+
+    private int count;
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+}
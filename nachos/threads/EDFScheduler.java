@@ -0,0 +1,424 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A priority scheduler with an earliest-deadline-first class for periodic
+ * real-time threads.
+ *
+ * <p>
+ * A thread becomes a real-time thread through
+ * <tt>KThread.setRealTime()</tt>, which gives it a period, a relative
+ * deadline and a processor budget per job. Real-time threads are always
+ * dequeued before other threads, in order of the absolute deadline of their
+ * current job. All other threads are scheduled exactly as by
+ * <tt>PriorityScheduler</tt>, including priority donation.
+ *
+ * <p>
+ * A real-time thread is only admitted if the total density of all admitted
+ * threads, the sum of <tt>budget / min(period, deadline)</tt>, stays within
+ * <tt>EDFScheduler.maxUtilization</tt> (1.0 unless set in
+ * <tt>nachos.conf</tt>). Under that bound, EDF meets every deadline as long
+ * as each job stays within its budget. A job that overruns its budget is
+ * preempted and scheduled as a normal thread until its next release, so it
+ * cannot make other real-time threads miss their deadlines. A job still
+ * unfinished at its deadline is counted as a miss by a timer, whether or not
+ * it has run since.
+ *
+ * <p>
+ * A thread woken while another thread is running may be a real-time thread
+ * whose job has just been released, so the running thread is preempted at
+ * the next timer interrupt.
+ */
+public class EDFScheduler extends PriorityScheduler {
+    /**
+     * Allocate a new EDF scheduler.
+     */
+    public EDFScheduler() {
+	maxUtilization = Config.getDouble("EDFScheduler.maxUtilization", 1.0);
+    }
+
+    /**
+     * Allocate a new EDF thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer priority from waiting threads
+     *					to the owning thread.
+     * @return	a new EDF thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new EDFQueue(transferPriority);
+    }
+
+    public boolean admitRealTime(KThread thread, long period, long deadline,
+				 long budget) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	RealTimeState state = getRealTimeState(thread);
+
+	double density = (double) budget / Math.min(period, deadline);
+	double available = maxUtilization - utilization;
+	if (state.isAdmitted())
+	    available += state.density;
+
+	if (density > available) {
+	    numRejected++;
+	    return false;
+	}
+
+	cancelRealTime(thread);
+
+	long time = Machine.timer().getTime();
+
+	state.period = period;
+	state.deadline = deadline;
+	state.budget = budget;
+	state.density = density;
+	state.release(time);
+	state.execStart = time;
+
+	utilization += density;
+	numAdmitted++;
+
+	return true;
+    }
+
+    public void cancelRealTime(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	RealTimeState state = getRealTimeState(thread);
+	if (!state.isAdmitted())
+	    return;
+
+	utilization -= state.density;
+	state.period = 0;
+	if (state.deadlineTimer != null)
+	    ThreadedKernel.alarm.cancel(state.deadlineTimer);
+    }
+
+    public long finishJob(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+
+	RealTimeState state = getRealTimeState(thread);
+	if (!state.isAdmitted())
+	    return time;
+
+	state.charge(time);
+	numJobs++;
+
+	state.release(state.releaseTime + state.period);
+	return state.releaseTime;
+    }
+
+    /**
+     * Charge <i>previous</i> for the time it ran, unless it was already
+     * charged when it joined a queue, and start the clock for <i>next</i>.
+     */
+    public void contextSwitch(KThread previous, KThread next) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+
+	RealTimeState previousState = getRealTimeState(previous);
+	if (!previousState.charged)
+	    previousState.charge(time);
+
+	RealTimeState state = getRealTimeState(next);
+	state.charged = false;
+	state.execStart = time;
+    }
+
+    /**
+     * Charge the current thread for the time it has run. Preempt it if it
+     * has overrun its budget, or if a thread was woken since the last timer
+     * interrupt.
+     */
+    public boolean timerInterrupt(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	getRealTimeState(thread).charge(Machine.timer().getTime());
+
+	boolean preempt = needPreempt;
+	needPreempt = false;
+	return preempt;
+    }
+
+    /**
+     * Print out the real-time statistics of this scheduler.
+     */
+    public void printStats() {
+	System.out.println("Real-time: admitted " + numAdmitted
+			   + ", rejected " + numRejected
+			   + ", jobs " + numJobs
+			   + ", deadline misses " + numDeadlineMisses
+			   + ", budget overruns " + numBudgetOverruns);
+    }
+
+    /**
+     * The number of real-time threads admitted.
+     */
+    public int numAdmitted = 0;
+    /**
+     * The number of real-time threads refused by admission control.
+     */
+    public int numRejected = 0;
+    /**
+     * The number of real-time jobs completed.
+     */
+    public int numJobs = 0;
+    /**
+     * The number of real-time jobs that did not finish by their deadline.
+     */
+    public int numDeadlineMisses = 0;
+    /**
+     * The number of real-time jobs that used more than their budget.
+     */
+    public int numBudgetOverruns = 0;
+
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new RealTimeState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected RealTimeState getRealTimeState(KThread thread) {
+	return (RealTimeState) getThreadState(thread);
+    }
+
+    /**
+     * A priority queue that also notes when a thread is woken up, so that
+     * the running thread can be preempted.
+     */
+    protected class EDFQueue extends PriorityQueue {
+	EDFQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	/**
+	 * Add a thread to this queue. The current thread is charged for the
+	 * time it has run first, since its ordering must not change while it
+	 * is in the queue.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    RealTimeState state = getRealTimeState(thread);
+	    if (thread == KThread.currentThread()) {
+		state.charge(Machine.timer().getTime());
+		state.charged = true;
+	    }
+	    else if (state.isRealTime())
+		needPreempt = true;
+
+	    super.waitForAccess(thread);
+	}
+    }
+
+    /**
+     * The scheduling state of a thread, including its real-time reservation
+     * and the progress of its current job.
+     */
+    protected class RealTimeState extends ThreadState {
+	/**
+	 * Allocate a new <tt>RealTimeState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public RealTimeState(KThread thread) {
+	    super(thread);
+	}
+
+	/**
+	 * Return <tt>true</tt> if the associated thread holds a real-time
+	 * reservation.
+	 *
+	 * @return	<tt>true</tt> if the thread holds a reservation.
+	 */
+	public boolean isAdmitted() {
+	    return period > 0;
+	}
+
+	/**
+	 * Return <tt>true</tt> if the associated thread is currently
+	 * scheduled as a real-time thread: it holds a reservation, and its
+	 * current job has not overrun its budget.
+	 *
+	 * @return	<tt>true</tt> if the thread is scheduled by deadline.
+	 */
+	public boolean isRealTime() {
+	    return isAdmitted() && used <= budget;
+	}
+
+	/**
+	 * Start a new job, released at <i>time</i>, and set a timer for its
+	 * deadline, so that a job that is still waiting for the processor at
+	 * its deadline is counted as a miss then.
+	 */
+	void release(long time) {
+	    releaseTime = time;
+	    absoluteDeadline = time + deadline;
+	    used = 0;
+	    missed = false;
+
+	    if (ThreadedKernel.alarm == null)
+		return;
+
+	    if (deadlineTimer == null) {
+		deadlineTimer = new Alarm.Timeout(new Runnable() {
+			public void run() {
+			    checkDeadline(Machine.timer().getTime());
+			}
+		    });
+	    }
+
+	    long now = Machine.timer().getTime();
+	    ThreadedKernel.alarm.schedule(deadlineTimer,
+					  Math.max(absoluteDeadline - now + 1, 0),
+					  0);
+	}
+
+	/**
+	 * Count the current job as a miss if it is still unfinished after its
+	 * deadline.
+	 */
+	void checkDeadline(long time) {
+	    if (isAdmitted() && time > absoluteDeadline && !missed) {
+		numDeadlineMisses++;
+		missed = true;
+	    }
+	}
+
+	/**
+	 * Charge the associated thread for the processor time it has used
+	 * since it was last charged, and check its current job against its
+	 * budget and deadline.
+	 */
+	void charge(long time) {
+	    long ran = time - execStart;
+	    execStart = time;
+
+	    if (!isAdmitted())
+		return;
+
+	    if (used <= budget && used + ran > budget) {
+		numBudgetOverruns++;
+		needPreempt = true;
+	    }
+	    used += ran;
+
+	    checkDeadline(time);
+	}
+
+	/**
+	 * Real-time threads come before all other threads, in order of
+	 * absolute deadline. Other threads are ordered by priority.
+	 */
+	public int compareTo(Object o) {
+	    RealTimeState state = (RealTimeState) o;
+
+	    boolean realTime = isRealTime();
+	    if (realTime != state.isRealTime())
+		return realTime ? -1 : 1;
+
+	    if (realTime && absoluteDeadline != state.absoluteDeadline)
+		return (absoluteDeadline < state.absoluteDeadline) ? -1 : 1;
+
+	    return super.compareTo(o);
+	}
+
+	/** The time between releases, or 0 if the thread is not real-time. */
+	protected long period = 0;
+	/** The relative deadline of each job. */
+	protected long deadline;
+	/** The processor time each job may use. */
+	protected long budget;
+	/** The release time of the current job. */
+	protected long releaseTime;
+	/** The absolute deadline of the current job. */
+	protected long absoluteDeadline;
+	/** The processor time used by the current job. */
+	protected long used;
+
+	double density;
+	boolean missed;
+	long execStart = 0;
+	/** <tt>true</tt> once the thread is charged for its current run. */
+	boolean charged = false;
+	/** Fires just after the deadline of the current job. */
+	Alarm.Timeout deadlineTimer = null;
+    }
+
+    /**
+     * Test that admission control refuses an overloaded set of threads, that
+     * a periodic thread meets its deadlines while a CPU-bound thread competes
+     * with it, and that a job which never runs is counted as a miss.
+     */
+    public static void selfTest() {
+	if (!(ThreadedKernel.scheduler instanceof EDFScheduler))
+	    return;
+
+	EDFScheduler scheduler = (EDFScheduler) ThreadedKernel.scheduler;
+
+	final int numJobs = 10;
+	final long period = 4*Stats.TimerTicks;
+
+	KThread periodic = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<numJobs; i++) {
+			work(Stats.TimerTicks/5);
+			KThread.waitForNextPeriod();
+		    }
+		}
+	    }).setName("periodic");
+
+	KThread hog = new KThread(new Runnable() {
+		public void run() {
+		    work((numJobs+1)*period);
+		}
+	    }).setName("hog");
+
+	Lib.assertTrue(periodic.setRealTime(period, period, period/2));
+	Lib.assertTrue(!hog.setRealTime(period, period, 3*period/4));
+
+	int misses = scheduler.numDeadlineMisses;
+
+	hog.fork();
+	periodic.fork();
+	periodic.join();
+	hog.join();
+
+	Lib.assertTrue(scheduler.numDeadlineMisses == misses);
+
+	// a job that never gets the processor is counted at its deadline
+	KThread late = new KThread().setName("late");
+	Lib.assertTrue(late.setRealTime(period, period, period/4));
+	ThreadedKernel.alarm.waitUntil(2*period);
+	Lib.assertTrue(scheduler.numDeadlineMisses == misses+1);
+	late.clearRealTime();
+    }
+
+    /**
+     * Use the processor for about <i>ticks</i> ticks without blocking.
+     */
+    private static void work(long ticks) {
+	long end = Machine.timer().getTime() + ticks;
+	while (Machine.timer().getTime() < end) {
+	    Machine.interrupt().disable();
+	    Machine.interrupt().enable();
+	}
+    }
+
+    private double maxUtilization;
+    private double utilization = 0;
+    private boolean needPreempt = false;
+}
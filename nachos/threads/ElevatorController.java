@@ -5,6 +5,21 @@ import nachos.machine.*;
 /**
  * A controller for all the elevators in an elevator bank. The controller
  * accesses the elevator bank through an instance of <tt>ElevatorControls</tt>.
+ *
+ * <p>
+ * Each elevator runs the LOOK algorithm: it keeps moving in one direction
+ * while it has a stop ahead, stopping for its riders' floors and for hall
+ * calls in its direction, and then turns around. A hall call is given to the
+ * elevator that would reach it soonest, estimated from the distance it must
+ * travel, the turn it must make first if it is headed away, and the stops it
+ * already has. An elevator that seems to have left riders behind is taken
+ * to be full, and is not given hall calls while any other would do. An
+ * elevator moving towards a new stop is redirected to stop there on the way.
+ *
+ * <p>
+ * The controller thread sleeps until the elevator bank posts an event or a
+ * door timer expires; it never polls. When the riders are done, it prints the
+ * time riders waited for an elevator and rode in one, and the throughput.
  */
 public class ElevatorController implements ElevatorControllerInterface {
     /**
@@ -12,7 +27,7 @@ public class ElevatorController implements ElevatorControllerInterface {
      */
     public ElevatorController() {
     }
-    
+
     /**
      * Initialize this elevator controller. The controller will access the
      * elevator bank through <i>controls</i>. This constructor should return
@@ -26,6 +41,25 @@ public class ElevatorController implements ElevatorControllerInterface {
      *				the elevator bank in <i>any</i> other way.
      */
     public void initialize(ElevatorControls controls) {
+	this.controls = controls;
+
+	numFloors = controls.getNumFloors();
+	numElevators = controls.getNumElevators();
+
+	cars = new Car[numElevators];
+	for (int i=0; i<numElevators; i++)
+	    cars[i] = new Car(i, controls.getFloor(i));
+
+	upCar = new int[numFloors];
+	downCar = new int[numFloors];
+	upCallTime = new long[numFloors];
+	downCallTime = new long[numFloors];
+	for (int floor=0; floor<numFloors; floor++)
+	    upCar[floor] = downCar[floor] = -1;
+
+	controls.setInterruptHandler(new Runnable() {
+		public void run() { eventWait.V(); }
+	    });
     }
 
     /**
@@ -34,5 +68,537 @@ public class ElevatorController implements ElevatorControllerInterface {
      * call <tt>controls.finish()</tt> when the controller is finished.
      */
     public void run() {
+	startTime = Machine.timer().getTime();
+
+	while (true) {
+	    // a rider who has just got on holds the doors open, so take the
+	    // events before closing any doors
+	    ElevatorEvent e = controls.getNextEvent();
+	    if (e == null) {
+		Car expired = nextExpiredCar();
+		if (expired != null)
+		    doorsExpired(expired);
+		else
+		    eventWait.P();
+		continue;
+	    }
+
+	    switch (e.event) {
+	    case ElevatorEvent.eventUpButtonPressed:
+		hallCall(e.floor, dirUp);
+		break;
+	    case ElevatorEvent.eventDownButtonPressed:
+		hallCall(e.floor, dirDown);
+		break;
+	    case ElevatorEvent.eventFloorButtonPressed:
+		carCall(cars[e.elevator], e.floor);
+		break;
+	    case ElevatorEvent.eventElevatorArrived:
+		arrived(cars[e.elevator], e.floor);
+		break;
+	    case ElevatorEvent.eventRidersDone:
+		for (int i=0; i<numElevators; i++)
+		    ThreadedKernel.alarm.cancel(cars[i].doorTimer);
+		printStats();
+		controls.finish();
+		Lib.assertNotReached();
+	    }
+	}
+    }
+
+    /**
+     * Return a car whose doors have been open long enough, or <tt>null</tt>
+     * if there is none.
+     */
+    private Car nextExpiredCar() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Car expired = null;
+	if (numExpired > 0) {
+	    for (int i=0; i<numElevators && expired == null; i++) {
+		if (cars[i].doorsExpired) {
+		    cars[i].doorsExpired = false;
+		    numExpired--;
+		    expired = cars[i];
+		}
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return expired;
+    }
+
+    /**
+     * A rider on <i>floor</i> wants to go in <i>direction</i>.
+     */
+    private void hallCall(int floor, int direction) {
+	int[] assigned = (direction == dirUp) ? upCar : downCar;
+	if (assigned[floor] != -1)
+	    return;
+
+	long time = Machine.timer().getTime();
+
+	// an elevator standing open here without a direction can take it now
+	for (int i=0; i<numElevators; i++) {
+	    Car car = cars[i];
+	    if (car.doorsOpen && car.floor == floor &&
+		car.direction == dirNeither) {
+		setDirection(car, direction);
+		holdDoors(car);
+		recordWait(0);
+		return;
+	    }
+	}
+
+	if (direction == dirUp)
+	    upCallTime[floor] = time;
+	else
+	    downCallTime[floor] = time;
+
+	// a car that has just left here going this way was too full to take
+	// everyone waiting, and would leave riders behind at its other calls
+	// that way too
+	for (int i=0; i<numElevators; i++) {
+	    Car car = cars[i];
+	    if (car.closedFloor == floor && car.closedDirection == direction &&
+		!car.full) {
+		car.full = true;
+		reassignCalls(car, direction);
+	    }
+	}
+
+	assign(floor, direction);
+    }
+
+    /**
+     * Give the hall call on <i>floor</i> going in <i>direction</i> to the
+     * car that would reach it soonest.
+     */
+    private void assign(int floor, int direction) {
+	int[] assigned = (direction == dirUp) ? upCar : downCar;
+
+	Car best = null;
+	long bestCost = Long.MAX_VALUE;
+	for (int i=0; i<numElevators; i++) {
+	    long cost = cost(cars[i], floor, direction);
+	    if (cost < bestCost) {
+		best = cars[i];
+		bestCost = cost;
+	    }
+	}
+
+	Lib.debug(dbgElevator, "hall call " + floor + " dir " + direction
+		  + " to car " + best.index);
+	assigned[floor] = best.index;
+	best.numStops++;
+
+	serve(best);
+    }
+
+    /**
+     * Take the hall calls going in <i>direction</i> away from <i>car</i>
+     * and give each to whichever car would now reach it soonest.
+     */
+    private void reassignCalls(Car car, int direction) {
+	int[] assigned = (direction == dirUp) ? upCar : downCar;
+
+	for (int floor=0; floor<numFloors; floor++) {
+	    if (assigned[floor] == car.index) {
+		assigned[floor] = -1;
+		car.numStops--;
+		assign(floor, direction);
+	    }
+	}
+    }
+
+    /**
+     * A rider in <i>car</i> wants to get off at <i>floor</i>.
+     */
+    private void carCall(Car car, int floor) {
+	// a rider has just got on; others may still be getting on or off
+	if (car.doorsOpen)
+	    holdDoors(car);
+
+	if (car.stops[floor])
+	    return;
+
+	Lib.debug(dbgElevator, "car " + car.index + " call " + floor);
+	car.stops[floor] = true;
+	car.stopTime[floor] = Machine.timer().getTime();
+	car.numStops++;
+
+	serve(car);
+    }
+
+    /**
+     * <i>car</i> has a new stop: start it moving if it is idle, or stop on
+     * the way if it is moving towards the new stop.
+     */
+    private void serve(Car car) {
+	if (car.doorsOpen)
+	    return;
+
+	if (!car.moving) {
+	    dispatch(car);
+	    return;
+	}
+
+	int passing = controls.getFloor(car.index);
+	int next = nextStop(car, passing, car.direction);
+	if (next != -1 && next != car.destination &&
+	    (next - car.destination) * car.direction < 0 &&
+	    controls.moveTo(next, car.index)) {
+	    Lib.debug(dbgElevator, "car " + car.index + " stops early at "
+		      + next);
+	    car.destination = next;
+	}
+    }
+
+    private void arrived(Car car, int floor) {
+	Lib.assertTrue(car.moving && floor == car.destination);
+
+	car.moving = false;
+	car.floor = floor;
+	car.numFloorsMoved += Math.abs(floor - car.departure);
+
+	dispatch(car);
+    }
+
+    private void doorsExpired(Car car) {
+	if (!car.doorsOpen)
+	    return;
+
+	controls.closeDoors(car.index);
+	car.doorsOpen = false;
+	car.closedFloor = car.floor;
+	car.closedDirection = car.direction;
+
+	dispatch(car);
+    }
+
+    /**
+     * Decide what a stopped <i>car</i> with closed doors does next: open
+     * here, move to its next stop, or wait.
+     */
+    private void dispatch(Car car) {
+	int floor = car.floor;
+	int direction = car.direction;
+
+	if (direction == dirNeither) {
+	    boolean above = hasStopBeyond(car, floor, dirUp);
+	    boolean below = hasStopBeyond(car, floor, dirDown);
+
+	    if (upCar[floor] == car.index)
+		direction = dirUp;
+	    else if (downCar[floor] == car.index)
+		direction = dirDown;
+	    else if (above || below)
+		direction = nearerDirection(car, floor, above, below);
+	}
+
+	// turn around only when there is nothing more to do going this way
+	if (direction != dirNeither && !hasCallHere(car, floor, direction) &&
+	    !hasStopBeyond(car, floor, direction)) {
+	    direction = -direction;
+	    if (!hasCallHere(car, floor, direction) &&
+		!hasStopBeyond(car, floor, direction))
+		direction = dirNeither;
+	}
+
+	if (car.stops[floor] ||
+	    (direction != dirNeither && hasCallHere(car, floor, direction))) {
+	    open(car, direction);
+	}
+	else if (direction == dirNeither) {
+	    car.direction = dirNeither;
+	    car.full = false;
+	}
+	else {
+	    car.direction = direction;
+	    car.destination = nextStop(car, floor, direction);
+	    car.departure = floor;
+	    car.moving = true;
+	    Lib.debug(dbgElevator, "car " + car.index + " moves from " + floor
+		      + " to " + car.destination);
+	    boolean moved = controls.moveTo(car.destination, car.index);
+	    Lib.assertTrue(moved);
+	}
+    }
+
+    /**
+     * Return <tt>true</tt> if <i>car</i> is assigned the hall call on
+     * <i>floor</i> going in <i>direction</i>.
+     */
+    private boolean hasCallHere(Car car, int floor, int direction) {
+	int[] assigned = (direction == dirUp) ? upCar : downCar;
+	return assigned[floor] == car.index;
+    }
+
+    /**
+     * Open the doors of <i>car</i> on its floor, showing <i>direction</i>,
+     * and clear the stops it serves there.
+     */
+    private void open(Car car, int direction) {
+	int floor = car.floor;
+	long time = Machine.timer().getTime();
+
+	if (direction == dirNeither) {
+	    if (upCar[floor] == car.index)
+		direction = dirUp;
+	    else if (downCar[floor] == car.index)
+		direction = dirDown;
+	}
+
+	car.closedFloor = -1;
+	if (car.stops[floor]) {
+	    // someone gets off, so there is room again
+	    car.full = false;
+	    car.stops[floor] = false;
+	    car.numStops--;
+	    recordRide(time - car.stopTime[floor]);
+	}
+	if (direction != dirNeither) {
+	    int[] assigned = (direction == dirUp) ? upCar : downCar;
+	    long[] callTime = (direction == dirUp) ? upCallTime : downCallTime;
+
+	    // riders waiting here will board this car, even if the call was
+	    // given to another, unless this one is full
+	    if (assigned[floor] == car.index ||
+		(assigned[floor] != -1 && !car.full)) {
+		cars[assigned[floor]].numStops--;
+		assigned[floor] = -1;
+		recordWait(time - callTime[floor]);
+	    }
+	}
+
+	Lib.debug(dbgElevator, "car " + car.index + " opens at " + floor
+		  + " dir " + direction);
+	// riders look at the direction when the doors open
+	setDirection(car, direction);
+	controls.openDoors(car.index);
+	car.doorsOpen = true;
+	numStopsMade++;
+
+	holdDoors(car);
+    }
+
+    /**
+     * Keep the doors of <i>car</i> open until <tt>timeDoorsOpen</tt> ticks
+     * pass with no rider pressing a button in it. The controller cannot see
+     * riders get on or off, but each rider that gets on presses a floor
+     * button, so the doors stay open while riders are still boarding. This
+     * depends only on the clock, not on the order the scheduler runs the
+     * riders woken by the doors opening.
+     */
+    private void holdDoors(Car car) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	// an expiry not yet handled is stale now
+	if (car.doorsExpired) {
+	    car.doorsExpired = false;
+	    numExpired--;
+	}
+	ThreadedKernel.alarm.schedule(car.doorTimer, timeDoorsOpen, 0);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private void setDirection(Car car, int direction) {
+	car.direction = direction;
+	controls.setDirectionDisplay(car.index, direction);
+    }
+
+    /**
+     * Return <tt>true</tt> if <i>car</i> has a stop beyond <i>floor</i> in
+     * <i>direction</i>.
+     */
+    private boolean hasStopBeyond(Car car, int floor, int direction) {
+	for (int f=floor+direction; f>=0 && f<numFloors; f+=direction) {
+	    if (car.stops[f] || upCar[f] == car.index ||
+		downCar[f] == car.index)
+		return true;
+	}
+	return false;
+    }
+
+    /**
+     * Return the next floor past <i>floor</i> in <i>direction</i> where
+     * <i>car</i> should stop: the nearest rider's floor or hall call in that
+     * direction, or failing that the farthest hall call in the other
+     * direction, where it will turn around. Returns -1 if there is none.
+     */
+    private int nextStop(Car car, int floor, int direction) {
+	int[] sameWay = (direction == dirUp) ? upCar : downCar;
+	int[] otherWay = (direction == dirUp) ? downCar : upCar;
+	int turn = -1;
+
+	for (int f=floor+direction; f>=0 && f<numFloors; f+=direction) {
+	    if (car.stops[f] || sameWay[f] == car.index)
+		return f;
+	    if (otherWay[f] == car.index)
+		turn = f;
+	}
+	return turn;
     }
+
+    /**
+     * Return the direction of the nearest stop of an idle car.
+     */
+    private int nearerDirection(Car car, int floor, boolean above,
+				boolean below) {
+	if (!above)
+	    return dirDown;
+	if (!below)
+	    return dirUp;
+
+	int up = nextStop(car, floor, dirUp);
+	int down = nextStop(car, floor, dirDown);
+	return (up - floor <= floor - down) ? dirUp : dirDown;
+    }
+
+    /**
+     * Estimate the ticks before <i>car</i> could open its doors on
+     * <i>floor</i> going in <i>direction</i>: the floors it must travel,
+     * going to the end of its current sweep first if the floor is not ahead
+     * of it in that direction, plus the time its doors are open at the stops
+     * it already has. A car that left riders behind is avoided until someone
+     * gets off it.
+     */
+    private long cost(Car car, int floor, int direction) {
+	int position = car.moving ? controls.getFloor(car.index) : car.floor;
+	int distance;
+
+	if (car.direction == dirNeither) {
+	    distance = Math.abs(floor - position);
+	}
+	else if (car.direction == direction &&
+		 (floor - position) * direction > (car.moving ? 0 : -1)) {
+	    distance = Math.abs(floor - position);
+	}
+	else {
+	    int end = position;
+	    for (int f=position; f>=0 && f<numFloors; f+=car.direction) {
+		if (car.stops[f] || upCar[f] == car.index ||
+		    downCar[f] == car.index)
+		    end = f;
+	    }
+	    distance = Math.abs(end - position) + Math.abs(floor - end);
+	}
+
+	long cost = (long) distance * Stats.ElevatorTicks +
+	    (long) car.numStops * timeDoorsOpen;
+	// prefer any car with room to one that is probably full
+	if (car.full)
+	    cost += (long) 2 * numFloors * Stats.ElevatorTicks;
+	return cost;
+    }
+
+    private void recordWait(long ticks) {
+	numHallCalls++;
+	totalWait += ticks;
+	maxWait = Math.max(maxWait, ticks);
+    }
+
+    private void recordRide(long ticks) {
+	numCarCalls++;
+	totalRide += ticks;
+	maxRide = Math.max(maxRide, ticks);
+    }
+
+    private void printStats() {
+	long ticks = Machine.timer().getTime() - startTime;
+	long floorsMoved = 0;
+	for (int i=0; i<numElevators; i++)
+	    floorsMoved += cars[i].numFloorsMoved;
+
+	System.out.println("ElevatorController: " + numElevators
+			   + " elevators, " + numFloors + " floors, "
+			   + ticks + " ticks, " + numStopsMade + " stops, "
+			   + floorsMoved + " floors travelled");
+	System.out.println("ElevatorController: " + numHallCalls
+			   + " hall calls, wait mean "
+			   + (numHallCalls > 0 ? totalWait / numHallCalls : 0)
+			   + " max " + maxWait + " ticks; " + numCarCalls
+			   + " floor calls, ride mean "
+			   + (numCarCalls > 0 ? totalRide / numCarCalls : 0)
+			   + " max " + maxRide + " ticks; "
+			   + (ticks > 0 ? numCarCalls * 100000 / ticks : 0)
+			   + " floor calls per 100000 ticks");
+    }
+
+    /**
+     * The controller's view of one elevator.
+     */
+    private class Car {
+	Car(int index, int floor) {
+	    this.index = index;
+	    this.floor = floor;
+
+	    stops = new boolean[numFloors];
+	    stopTime = new long[numFloors];
+
+	    doorTimer = new Alarm.Timeout(new Runnable() {
+		    public void run() {
+			// runs in the timer interrupt handler
+			doorsExpired = true;
+			numExpired++;
+			eventWait.V();
+		    }
+		});
+	}
+
+	int index;
+	/** The floor the car is stopped at, or last stopped at. */
+	int floor;
+	int direction = dirNeither;
+	boolean moving = false, doorsOpen = false;
+	int destination, departure;
+	/** The floors riders in the car want to get off at. */
+	boolean[] stops;
+	/** When each floor in <tt>stops</tt> was requested. */
+	long[] stopTime;
+	/** The floors in <tt>stops</tt> plus the hall calls assigned. */
+	int numStops = 0;
+	long numFloorsMoved = 0;
+	/**
+	 * The floor and direction the car last closed its doors at, or -1 once
+	 * it opens them again.
+	 */
+	int closedFloor = -1, closedDirection;
+	/**
+	 * Riders were probably left behind when the car last closed its doors.
+	 * The controller cannot see how many riders are in a car, so this is a
+	 * guess: a hall call pressed again on the floor and in the direction
+	 * the car has just left is taken to mean it had no room. A rider who
+	 * arrived just after the doors closed, or who did not run before they
+	 * did, looks the same; the guess only makes the car less likely to be
+	 * given hall calls, and is forgotten when someone gets off or the car
+	 * goes idle.
+	 */
+	boolean full = false;
+
+	Alarm.Timeout doorTimer;
+	boolean doorsExpired = false;
+    }
+
+    private static final char dbgElevator = 'e';
+
+    private ElevatorControls controls;
+    private int numFloors, numElevators;
+    private Car[] cars;
+
+    /** The car assigned to each floor's up call, or -1. */
+    private int[] upCar;
+    /** The car assigned to each floor's down call, or -1. */
+    private int[] downCar;
+    private long[] upCallTime, downCallTime;
+
+    private Semaphore eventWait = new Semaphore(0);
+    /** The number of cars whose door timers have expired. */
+    private int numExpired = 0;
+
+    private long startTime;
+    private long numStopsMade = 0;
+    private long numHallCalls = 0, totalWait = 0, maxWait = 0;
+    private long numCarCalls = 0, totalRide = 0, maxRide = 0;
 }
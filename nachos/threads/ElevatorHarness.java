@@ -0,0 +1,145 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A headless load test for elevator controllers. It fills
+ * <tt>Machine.bank()</tt> with <tt>Rider</tt>s whose starting floors and
+ * stops are generated at random, runs the simulation, and
+ * reports percentiles of how long riders waited for an elevator, rode in one,
+ * and took over all their stops. Setting <tt>ElevatorHarness.gui</tt> shows
+ * each run in the elevator GUI as well.
+ */
+public class ElevatorHarness {
+    /**
+     * Run <i>numRiders</i> riders, each making <i>numStops</i> random stops,
+     * through <i>controller</i> on a bank of <i>numElevators</i> elevators
+     * and <i>numFloors</i> floors, and print their latencies.
+     *
+     * @param	controller	the controller to test.
+     * @param	numElevators	the number of elevators in the bank.
+     * @param	numFloors	the number of floors in the bank.
+     * @param	numRiders	the number of riders, at least 1. Each is a
+     *				thread, so this must leave 50 of
+     *				<tt>TCB.maxThreads</tt> for the rest of the
+     *				kernel.
+     * @param	numStops	the number of stops each rider makes.
+     * @param	seed		the seed for the stops.
+     */
+    public static void run(ElevatorControllerInterface controller,
+			   int numElevators, int numFloors, int numRiders,
+			   int numStops, long seed) {
+	Lib.assertTrue(Machine.bank() != null);
+	Lib.assertTrue(numFloors >= 2 && numStops >= 1);
+	Lib.assertTrue(numRiders >= 1 && numRiders <= TCB.maxThreads - 50);
+
+	Random random = new Random(seed);
+	Rider[] riders = new Rider[numRiders];
+
+	Machine.bank().init(numElevators, numFloors, controller);
+	if (Config.getBoolean("ElevatorHarness.gui", false))
+	    Machine.bank().enableGui();
+
+	for (int i=0; i<numRiders; i++) {
+	    int floor = random.nextInt(numFloors);
+	    int[] stops = new int[numStops];
+	    for (int j=0, previous=floor; j<numStops; j++) {
+		// any floor but the one the rider is on
+		stops[j] = random.nextInt(numFloors-1);
+		if (stops[j] >= previous)
+		    stops[j]++;
+		previous = stops[j];
+	    }
+
+	    riders[i] = new Rider();
+	    Machine.bank().addRider(riders[i], floor, stops);
+	}
+
+	long startTicks = Machine.timer().getTime();
+	long startTime = System.nanoTime();
+
+	Machine.bank().run();
+
+	long ticks = Machine.timer().getTime() - startTicks;
+	long elapsed = System.nanoTime() - startTime;
+
+	long[] waits = new long[numRiders*numStops];
+	long[] rides = new long[numRiders*numStops];
+	long[] totals = new long[numRiders];
+	for (int i=0; i<numRiders; i++) {
+	    long[] riderWaits = riders[i].getWaitTicks();
+	    long[] riderRides = riders[i].getRideTicks();
+	    for (int j=0; j<numStops; j++) {
+		waits[i*numStops+j] = riderWaits[j];
+		rides[i*numStops+j] = riderRides[j];
+		totals[i] += riderWaits[j] + riderRides[j];
+	    }
+	}
+
+	System.out.println("ElevatorHarness: " + numElevators + " elevators, "
+			   + numFloors + " floors, " + numRiders + " riders, "
+			   + numStops + " stops each, " + ticks + " ticks, "
+			   + (elapsed / 1000000) + " ms");
+	System.out.println("ElevatorHarness: wait " + percentiles(waits));
+	System.out.println("ElevatorHarness: ride " + percentiles(rides));
+	System.out.println("ElevatorHarness: rider " + percentiles(totals));
+    }
+
+    /**
+     * Return the 50th, 90th, 99th and 100th percentiles of <i>ticks</i>,
+     * which is sorted in place.
+     */
+    private static String percentiles(long[] ticks) {
+	Arrays.sort(ticks);
+	return "p50 " + percentile(ticks, 50) + ", p90 "
+	    + percentile(ticks, 90) + ", p99 " + percentile(ticks, 99)
+	    + ", max " + ticks[ticks.length-1] + " ticks";
+    }
+
+    private static long percentile(long[] sorted, int p) {
+	int index = (int) Math.ceil(sorted.length * p / 100.0) - 1;
+	return sorted[Math.max(index, 0)];
+    }
+
+    /**
+     * Run a few small banks through <tt>ElevatorController</tt>.
+     */
+    public static void selfTest() {
+	run(new ElevatorController(), 1, 2, 1, 1, 0);
+	run(new ElevatorController(), 1, 5, 10, 3, 1);
+	run(new ElevatorController(), 4, 20, 100, 2, 2);
+    }
+
+    /**
+     * Run a large bank through <tt>ElevatorController</tt>. The size is taken
+     * from <tt>ElevatorHarness.numElevators</tt>,
+     * <tt>ElevatorHarness.numFloors</tt> and
+     * <tt>ElevatorHarness.numRiders</tt>. The number of riders is limited by
+     * <tt>TCB.maxThreads</tt>, and a smaller run says so. If there is no room
+     * for any riders, the benchmark is skipped.
+     */
+    public static void benchmark() {
+	int numElevators = Config.getInteger("ElevatorHarness.numElevators", 16);
+	int numFloors = Config.getInteger("ElevatorHarness.numFloors", 100);
+	int numRiders = Config.getInteger("ElevatorHarness.numRiders", 10000);
+
+	if (TCB.maxThreads - 50 < 1) {
+	    System.out.println("ElevatorHarness: no room for riders; raise"
+			       + " TCB.maxThreads (now " + TCB.maxThreads
+			       + ") above 50 to run the benchmark");
+	    return;
+	}
+	if (numRiders > TCB.maxThreads - 50) {
+	    System.out.println("ElevatorHarness: only " + (TCB.maxThreads - 50)
+			       + " of " + numRiders + " riders; raise"
+			       + " TCB.maxThreads (now " + TCB.maxThreads
+			       + ") to run them all");
+	    numRiders = TCB.maxThreads - 50;
+	}
+
+	run(new ElevatorController(), numElevators, numFloors, numRiders, 2, 0);
+    }
+}
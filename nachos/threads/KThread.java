@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.ArrayList;
+
 /**
 * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
 * allows multiple threads to run concurrently.
@@ -49,8 +51,6 @@ public class KThread {
         else {
             readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
             readyQueue.acquire(this);       
-            joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
-            joinQueue.acquire(this);
 
             currentThread = this;
             tcb = TCB.currentTCB();
@@ -194,12 +194,11 @@ public class KThread {
         toBeDestroyed = currentThread;
 
 
-        currentThread.status = statusFinished;
+        currentThread.setStatus(statusFinished);
 
-        KThread next = joinQueue.nextThread();
-        if (next != null) {
-            next.ready();
-        }
+        ThreadedKernel.scheduler.cancelRealTime(currentThread);
+
+        currentThread.wakeJoiners();
         sleep();
     }
 
@@ -250,7 +249,7 @@ public class KThread {
         Lib.assertTrue(Machine.interrupt().disabled());
 
         if (currentThread.status != statusFinished)
-            currentThread.status = statusBlocked;
+            currentThread.setStatus(statusBlocked);
 
         runNextThread();
     }
@@ -265,7 +264,7 @@ public class KThread {
         Lib.assertTrue(Machine.interrupt().disabled());
         Lib.assertTrue(status != statusReady);
 
-        status = statusReady;
+        setStatus(statusReady);
         if (this != idleThread)
             readyQueue.waitForAccess(this);
 
@@ -274,21 +273,207 @@ public class KThread {
 
     /**
     * Waits for this thread to finish. If this thread is already finished,
-    * return immediately. This method must only be called once; the second
-    * call is not guaranteed to return. This thread must not be the current
-    * thread.
+    * return immediately. Any number of threads may join the same thread;
+    * they are all woken when it finishes, and while they wait they donate
+    * priority to it. This thread must not be the current thread.
     */
     public void join() {
         Lib.debug(dbgThread, "Joining to thread: " + toString());
 
         Lib.assertTrue(this != currentThread);
-        Machine.interrupt().disable();
+        boolean intStatus = Machine.interrupt().disable();
         if (this.status != statusFinished) {
-            KThread curr = KThread.currentThread();
-            joinQueue.waitForAccess(curr);
-            curr.sleep();
+            if (joinQueue == null) {
+                joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+                joinQueue.acquire(this);
+            }
+            joinQueue.waitForAccess(currentThread);
+            sleep();
         }
-        Machine.interrupt().enable();
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+    * Waits for all of <i>threads</i> to finish. The current thread sleeps
+    * once, and is woken by the last of them to finish, rather than once per
+    * thread as a loop of <tt>join()</tt> calls would be. None of the threads
+    * may be the current thread.
+    *
+    * <p>
+    * Unlike <tt>join()</tt>, the current thread does not donate priority to
+    * the threads it waits for. Donation goes through a <tt>ThreadQueue</tt>,
+    * and a thread can wait on only one queue at a time, so it could reach at
+    * most one of the threads. A caller that depends on donation should
+    * <tt>join()</tt> the threads one at a time instead.
+    *
+    * @param   threads the threads to wait for.
+    */
+    public static void joinAll(KThread... threads) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        JoinGroup group = new JoinGroup(threads, threads.length);
+        if (group.remaining > 0)
+            group.await();
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+    * Waits for any of <i>threads</i> to finish, and returns the first one
+    * that did. If one of them has already finished, returns it immediately.
+    * None of the threads may be the current thread. As with
+    * <tt>joinAll()</tt>, the current thread does not donate priority to the
+    * threads while it waits.
+    *
+    * @param   threads the threads to wait for. Must not be empty.
+    * @return  a thread from <i>threads</i> that has finished.
+    */
+    public static KThread joinAny(KThread... threads) {
+        Lib.assertTrue(threads.length > 0);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        JoinGroup group = new JoinGroup(threads, 1);
+        if (group.remaining > 0)
+            group.await();
+
+        Machine.interrupt().restore(intStatus);
+        return group.finished;
+    }
+
+    /**
+    * Wake every thread waiting for this thread to finish, in <tt>join()</tt>,
+    * <tt>joinAll()</tt> or <tt>joinAny()</tt>.
+    */
+    private void wakeJoiners() {
+        if (joinQueue != null)
+            joinQueue.readyAll();
+
+        if (joinGroups != null) {
+            for (JoinGroup group : joinGroups)
+                group.threadFinished(this);
+            joinGroups = null;
+        }
+    }
+
+    /**
+    * A thread sleeping in <tt>joinAll()</tt> or <tt>joinAny()</tt>, and the
+    * number of the threads it is waiting for that must still finish before it
+    * is woken.
+    */
+    private static class JoinGroup {
+        /**
+        * Register the current thread as waiting for <i>needed</i> of
+        * <i>threads</i> to finish. Threads that have already finished count
+        * at once, and the group is only registered with the others if they
+        * are not enough.
+        */
+        JoinGroup(KThread[] threads, int needed) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            this.threads = threads;
+            remaining = needed;
+
+            for (int i=0; i<threads.length && remaining > 0; i++) {
+                Lib.assertTrue(threads[i] != currentThread);
+                if (threads[i].status == statusFinished)
+                    threadFinished(threads[i]);
+            }
+
+            if (remaining > 0) {
+                for (int i=0; i<threads.length; i++) {
+                    KThread thread = threads[i];
+                    if (thread.status == statusFinished)
+                        continue;
+                    if (thread.joinGroups == null)
+                        thread.joinGroups = new ArrayList<JoinGroup>(2);
+                    thread.joinGroups.add(this);
+                }
+            }
+        }
+
+        /** Sleep until enough of the threads have finished. */
+        void await() {
+            waiter = currentThread;
+            sleep();
+        }
+
+        void threadFinished(KThread thread) {
+            if (remaining == 0)
+                return;
+
+            if (finished == null)
+                finished = thread;
+            if (--remaining == 0 && waiter != null) {
+                // stop the threads still running from waking us again
+                for (int i=0; i<threads.length; i++) {
+                    if (threads[i] != thread && threads[i].joinGroups != null)
+                        threads[i].joinGroups.remove(this);
+                }
+                waiter.ready();
+            }
+        }
+
+        private KThread[] threads;
+        private int remaining;
+        private KThread finished = null;
+        private KThread waiter = null;
+    }
+
+    /**
+    * Make this thread a periodic real-time thread. Every <i>period</i> ticks
+    * the thread is released to run a job, which must use at most
+    * <i>budget</i> ticks of processor time and finish within <i>deadline</i>
+    * ticks of its release. The first job is released immediately; the
+    * thread ends each job by calling <tt>waitForNextPeriod()</tt>. This
+    * thread must either be new or be the current thread.
+    *
+    * @param   period      the time between releases.
+    * @param   deadline    the time after each release by which the job must
+    *              finish.
+    * @param   budget      the processor time each job may use.
+    * @return  <tt>true</tt> if the scheduler admitted this thread, or
+    *      <tt>false</tt> if it cannot guarantee the reservation, in which
+    *      case this thread is scheduled as before.
+    */
+    public boolean setRealTime(long period, long deadline, long budget) {
+        Lib.assertTrue(period > 0 && deadline > 0 && budget > 0);
+        Lib.assertTrue(budget <= deadline);
+        Lib.assertTrue(status == statusNew || this == currentThread);
+
+        boolean intStatus = Machine.interrupt().disable();
+        boolean admitted = ThreadedKernel.scheduler.admitRealTime(this,
+            period, deadline, budget);
+        Machine.interrupt().restore(intStatus);
+
+        return admitted;
+    }
+
+    /**
+    * Return this thread to normal scheduling, giving up its real-time
+    * reservation. This thread must either be new or be the current thread.
+    */
+    public void clearRealTime() {
+        Lib.assertTrue(status == statusNew || this == currentThread);
+
+        boolean intStatus = Machine.interrupt().disable();
+        ThreadedKernel.scheduler.cancelRealTime(this);
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+    * End the current job of the current real-time thread, and sleep until
+    * its next job is released. Returns immediately if the current thread is
+    * not a real-time thread.
+    */
+    public static void waitForNextPeriod() {
+        boolean intStatus = Machine.interrupt().disable();
+        long release = ThreadedKernel.scheduler.finishJob(currentThread);
+        long delay = release - Machine.timer().getTime();
+        Machine.interrupt().restore(intStatus);
+
+        if (delay > 0)
+            ThreadedKernel.alarm.waitUntil(delay);
     }
 
     /**
@@ -350,8 +535,13 @@ public class KThread {
 
         Machine.yield();
 
+        ThreadedKernel.scheduler.contextSwitch(currentThread, this);
+
         currentThread.saveState();
 
+        if (this != currentThread)
+            numContextSwitches++;
+
         Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
         + " to: " + toString());
 
@@ -375,7 +565,7 @@ public class KThread {
 
         Machine.autoGrader().runningThread(this);
 
-        status = statusRunning;
+        setStatus(statusRunning);
 
         if (toBeDestroyed != null) {
             toBeDestroyed.tcb.destroy();
@@ -393,6 +583,96 @@ public class KThread {
         Lib.assertTrue(this == currentThread);
     }
 
+    /**
+    * Change the status of this thread, charging the time since its last
+    * change to the old status, and report the change to
+    * <tt>SchedulerStats</tt>.
+    *
+    * @param   newStatus   the new status.
+    */
+    private void setStatus(int newStatus) {
+        long time = Machine.timer().getTime();
+        long elapsed = time - statusTime;
+        statusTime = time;
+
+        if (status == statusReady)
+            readyTicks += elapsed;
+        else if (status == statusRunning)
+            runningTicks += elapsed;
+        else if (status == statusBlocked)
+            blockedTicks += elapsed;
+
+        if (this != idleThread) {
+            if (status == statusReady)
+                SchedulerStats.readyQueueChanged(-1, time);
+            if (newStatus == statusReady)
+                SchedulerStats.readyQueueChanged(1, time);
+            if (status == statusReady && newStatus == statusRunning)
+                SchedulerStats.dispatched(elapsed);
+        }
+
+        status = newStatus;
+
+        if (newStatus == statusFinished)
+            SchedulerStats.threadFinished(this);
+    }
+
+    /**
+    * Return the number of ticks this thread has spent on the ready queue,
+    * up to its last change of status.
+    *
+    * @return  the ticks this thread has spent ready to run.
+    */
+    public long getReadyTicks() {
+        return readyTicks;
+    }
+
+    /**
+    * Return the number of ticks this thread has spent running, up to its
+    * last change of status.
+    *
+    * @return  the ticks this thread has spent running.
+    */
+    public long getRunningTicks() {
+        return runningTicks;
+    }
+
+    /**
+    * Return the number of ticks this thread has spent blocked, up to its
+    * last change of status.
+    *
+    * @return  the ticks this thread has spent blocked.
+    */
+    public long getBlockedTicks() {
+        return blockedTicks;
+    }
+
+    /**
+    * Return the number of ticks the idle thread has had the processor,
+    * that is, the time no other thread was ready to run.
+    *
+    * @return  the processor's idle time so far.
+    */
+    static long getIdleTicks() {
+        if (idleThread == null)
+            return 0;
+
+        long ticks = idleThread.runningTicks;
+        if (idleThread.status == statusRunning)
+            ticks += Machine.timer().getTime() - idleThread.statusTime;
+        return ticks;
+    }
+
+    /**
+    * Return the number of times the processor has switched from one thread
+    * to a different thread since Nachos started.
+    *
+    * @return  the number of context switches so far.
+    */
+    public static long getNumContextSwitches() {
+        return numContextSwitches;
+    }
+
     private static class PingTest implements Runnable {
         PingTest(int which) {
         this.which = which;
@@ -417,6 +697,51 @@ public class KThread {
 
         new KThread(new PingTest(1)).setName("forked thread").fork();
         new PingTest(0).run();
+
+        joinTest();
+    }
+
+    /**
+    * Test that several threads can join the same thread, and that
+    * <tt>joinAll()</tt> and <tt>joinAny()</tt> wait for the right threads.
+    */
+    private static void joinTest() {
+        final int[] finished = new int[1];
+
+        KThread[] children = new KThread[8];
+        for (int i=0; i<children.length; i++) {
+            final int delay = 100 * (i+1);
+            children[i] = new KThread(new Runnable() {
+                public void run() {
+                    ThreadedKernel.alarm.waitUntil(delay);
+                    finished[0]++;
+                }
+            }).setName("child" + i);
+        }
+
+        // two threads join the slowest child
+        final KThread last = children[children.length-1];
+        KThread joiner = new KThread(new Runnable() {
+            public void run() {
+                last.join();
+                Lib.assertTrue(finished[0] == 8);
+            }
+        }).setName("joiner");
+        joiner.fork();
+
+        for (int i=0; i<children.length; i++)
+            children[i].fork();
+
+        KThread first = joinAny(children);
+        Lib.assertTrue(first.status == statusFinished && finished[0] >= 1);
+        Lib.assertTrue(joinAny(children).status == statusFinished);
+
+        joinAll(children);
+        Lib.assertTrue(finished[0] == 8);
+
+        last.join();
+        joiner.join();
+        joinAll(children);
     }
 
     private static final char dbgThread = 't';
@@ -440,9 +765,16 @@ public class KThread {
     * on the ready queue and not running).
     */
     private int status = statusNew;
+    /** The time of the last change of status. */
+    private long statusTime = Machine.timer().getTime();
+    private long readyTicks = 0, runningTicks = 0, blockedTicks = 0;
     private String name = "(unnamed thread)";
     private Runnable target;
     private TCB tcb;
+    /** Threads waiting in <tt>join()</tt>, created by the first of them. */
+    private ThreadQueue joinQueue = null;
+    /** Groups waiting in <tt>joinAll()</tt> or <tt>joinAny()</tt>. */
+    private ArrayList<JoinGroup> joinGroups = null;
 
     /**
     * Unique identifer for this thread. Used to deterministically compare
@@ -451,9 +783,9 @@ public class KThread {
     private int id = numCreated++;
     /** Number of times the KThread constructor was called. */
     private static int numCreated = 0;
+    private static long numContextSwitches = 0;
 
     private static ThreadQueue readyQueue = null;
-    private static ThreadQueue joinQueue = null;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
@@ -24,6 +24,22 @@ public class Lock {
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+	this(null);
+    }
+
+    /**
+     * Allocate a new lock with a name, which identifies it in the lock
+     * profile. The lock will initially be <i>free</i>.
+     *
+     * @param	name	the name of the lock, or <tt>null</tt> to name it after
+     *			the place it was created. Locks with the same name are
+     *			profiled together.
+     *
+     * @see	nachos.threads.LockProfile
+     */
+    public Lock(String name) {
+	if (LockProfile.isEnabled())
+	    profile = LockProfile.forLock(name);
     }
 
     /**
@@ -37,12 +53,21 @@ public class Lock {
 	KThread thread = KThread.currentThread();
 
 	if (lockHolder != null) {
+	    long waitStart = (profile != null) ? Machine.timer().getTime() : 0;
 	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
+	    if (profile != null) {
+		holdStart = Machine.timer().getTime();
+		profile.acquiredAfterWait(thread, holdStart - waitStart);
+	    }
 	}
 	else {
 	    waitQueue.acquire(thread);
 	    lockHolder = thread;
+	    if (profile != null) {
+		holdStart = Machine.timer().getTime();
+		profile.acquired();
+	    }
 	}
 
 	Lib.assertTrue(lockHolder == thread);
@@ -50,6 +75,50 @@ public class Lock {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically acquire this lock, giving up after <i>ticks</i> clock ticks.
+     * The current thread must not already hold this lock.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait. If 0, do
+     *			not wait at all.
+     * @return	<tt>true</tt> if the lock was acquired, or <tt>false</tt> if
+     *		the wait timed out.
+     */
+    public boolean tryAcquire(long ticks) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (lockHolder == null) {
+	    waitQueue.acquire(thread);
+	    lockHolder = thread;
+	    if (profile != null) {
+		holdStart = Machine.timer().getTime();
+		profile.acquired();
+	    }
+	}
+	else if (ticks > 0) {
+	    long waitStart = (profile != null) ? Machine.timer().getTime() : 0;
+	    boolean acquired = ThreadedKernel.alarm.sleepOn(waitQueue, ticks);
+	    if (profile != null) {
+		long time = Machine.timer().getTime();
+		if (acquired) {
+		    holdStart = time;
+		    profile.acquiredAfterWait(thread, time - waitStart);
+		}
+		else {
+		    profile.timedOut(thread, time - waitStart);
+		}
+	    }
+	}
+
+	boolean acquired = (lockHolder == thread);
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
     /**
      * Atomically release this lock, allowing other threads to acquire it.
      */
@@ -58,6 +127,9 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
+	if (profile != null)
+	    profile.released(Machine.timer().getTime() - holdStart);
+
 	if ((lockHolder = waitQueue.nextThread()) != null)
 	    lockHolder.ready();
 	
@@ -74,6 +146,8 @@ public class Lock {
     }
 
     private KThread lockHolder = null;
+    private LockProfile profile = null;
+    private long holdStart;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
 }
@@ -0,0 +1,317 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Contention statistics for a group of <tt>Lock</tt>s. When
+ * <tt>Lock.profile</tt> is set in <tt>nachos.conf</tt>, every lock is
+ * profiled, and <tt>ThreadedKernel.terminate()</tt> prints the groups threads
+ * spent the most time waiting for. Locks with the same name share a profile,
+ * and so do unnamed locks created at the same place, so the report stays the
+ * same size however many locks a program creates.
+ *
+ * <p>
+ * A profile records the number of acquisitions, how many of them had to wait,
+ * the total and longest wait, a histogram of hold times, and the threads that
+ * waited longest. Uncontended acquisitions only read the clock and bump
+ * counters; the waiter table is only touched when a thread has waited, and
+ * holds only the few threads the report prints, so a profile stays the same
+ * size however many threads use its locks. With profiling off, a lock has no
+ * profile and pays a single null check.
+ */
+public class LockProfile {
+    private LockProfile(String name) {
+	this.name = name;
+    }
+
+    /**
+     * Return the profile for a new lock, creating it if this is the first
+     * lock with this name or from this creation site.
+     *
+     * <p>
+     * Finding the creation site of an unnamed lock takes a stack trace, but
+     * the profile and its name are built only once per site. Naming a lock
+     * avoids the stack trace.
+     *
+     * @param	name	the name of the lock, or <tt>null</tt> to group it
+     *			with the other locks created at the same place.
+     * @return	the profile the lock should update.
+     */
+    static LockProfile forLock(String name) {
+	Object key = (name != null) ? name : creationSite();
+
+	LockProfile profile = profiles.get(key);
+	if (profile == null) {
+	    profile = new LockProfile((name != null) ? name : siteName(key));
+	    profiles.put(key, profile);
+	}
+
+	profile.numLocks++;
+	numProfiledLocks++;
+	return profile;
+    }
+
+    /**
+     * Return <tt>true</tt> if new locks should be profiled.
+     */
+    static boolean isEnabled() {
+	return enabled;
+    }
+
+    /**
+     * Record that a lock was acquired without waiting.
+     */
+    void acquired() {
+	numAcquires++;
+    }
+
+    /**
+     * Record that <i>thread</i> acquired a lock after waiting <i>waited</i>
+     * ticks.
+     */
+    void acquiredAfterWait(KThread thread, long waited) {
+	numAcquires++;
+	recordWait(thread, waited);
+    }
+
+    /**
+     * Record that <i>thread</i> gave up after waiting <i>waited</i> ticks.
+     */
+    void timedOut(KThread thread, long waited) {
+	numTimeouts++;
+	recordWait(thread, waited);
+    }
+
+    /**
+     * Record that a lock was released after being held <i>held</i> ticks.
+     */
+    void released(long held) {
+	int bucket = 0;
+	while (bucket < holdHistogram.length-1 && held >= (1L << bucket))
+	    bucket++;
+	holdHistogram[bucket]++;
+    }
+
+    private void recordWait(KThread thread, long waited) {
+	numContended++;
+	totalWait += waited;
+	maxWait = Math.max(maxWait, waited);
+
+	// add to the thread's total if it is in the table, or else take a free
+	// slot or the place of the smallest total if this wait is longer
+	int smallest = 0;
+	for (int i=0; i<topWaiters.length; i++) {
+	    if (topWaiters[i] == null) {
+		smallest = i;
+		break;
+	    }
+	    if (topWaiters[i] == thread) {
+		topWaits[i] += waited;
+		return;
+	    }
+	    if (topWaits[i] < topWaits[smallest])
+		smallest = i;
+	}
+	if (topWaiters[smallest] == null || waited > topWaits[smallest]) {
+	    topWaiters[smallest] = thread;
+	    topWaits[smallest] = waited;
+	}
+    }
+
+    /**
+     * Return the stack frame of the first caller outside <tt>Lock</tt> and
+     * <tt>forLock()</tt>.
+     */
+    private static Object creationSite() {
+	StackTraceElement[] trace = new Throwable().getStackTrace();
+	for (int i=0; i<trace.length; i++) {
+	    String className = trace[i].getClassName();
+	    String methodName = trace[i].getMethodName();
+	    if (!className.equals(Lock.class.getName()) &&
+		!(className.equals(LockProfile.class.getName()) &&
+		  (methodName.equals("creationSite") ||
+		   methodName.equals("forLock"))))
+		return trace[i];
+	}
+	return "unknown";
+    }
+
+    private static String siteName(Object site) {
+	if (!(site instanceof StackTraceElement))
+	    return site.toString();
+
+	StackTraceElement frame = (StackTraceElement) site;
+	return frame.getFileName() + ":" + frame.getLineNumber();
+    }
+
+    /**
+     * Print the profiles of the locks with the most total waiting, busiest
+     * first.
+     */
+    public static void printReport() {
+	if (profiles.isEmpty())
+	    return;
+
+	ArrayList<LockProfile> sorted =
+	    new ArrayList<LockProfile>(profiles.values());
+	Collections.sort(sorted, new Comparator<LockProfile>() {
+		public int compare(LockProfile a, LockProfile b) {
+		    if (a.totalWait != b.totalWait)
+			return (a.totalWait > b.totalWait) ? -1 : 1;
+		    return Long.compare(b.numAcquires, a.numAcquires);
+		}
+	    });
+
+	System.out.println("Lock profile: " + numProfiledLocks + " locks in "
+			   + profiles.size() + " groups");
+	for (int i=0; i<Math.min(sorted.size(), reportLocks); i++)
+	    System.out.println(sorted.get(i));
+    }
+
+    public String toString() {
+	StringBuffer buf = new StringBuffer();
+
+	buf.append("  " + name);
+	if (numLocks > 1)
+	    buf.append(" (" + numLocks + " locks)");
+	buf.append(": " + numAcquires + " acquisitions, "
+		   + numContended + " contended");
+	if (numTimeouts > 0)
+	    buf.append(" (" + numTimeouts + " timed out)");
+	buf.append(", wait " + totalWait + " ticks total, " + maxWait
+		   + " max");
+
+	buf.append("; hold ticks");
+	for (int i=0; i<holdHistogram.length; i++) {
+	    if (holdHistogram[i] == 0)
+		continue;
+	    if (i == 0)
+		buf.append(" 0:");
+	    else if (i == holdHistogram.length-1)
+		buf.append(" >=" + (1L << (i-1)) + ":");
+	    else
+		buf.append(" <" + (1L << i) + ":");
+	    buf.append(holdHistogram[i]);
+	}
+
+	int numTop = 0;
+	while (numTop < topWaiters.length && topWaiters[numTop] != null)
+	    numTop++;
+
+	if (numTop > 0) {
+	    Integer[] order = new Integer[numTop];
+	    for (int i=0; i<order.length; i++)
+		order[i] = i;
+	    Arrays.sort(order, new Comparator<Integer>() {
+		    public int compare(Integer a, Integer b) {
+			return Long.compare(topWaits[b], topWaits[a]);
+		    }
+		});
+
+	    buf.append("; top waiters");
+	    for (int i=0; i<order.length; i++)
+		buf.append((i == 0 ? " " : ", ") + topWaiters[order[i]] + " ("
+			   + topWaits[order[i]] + ")");
+	}
+
+	return buf.toString();
+    }
+
+    /**
+     * Test that a profiled lock counts contended acquisitions and waits, that
+     * only the longest waiters are kept, and that locks created at the same
+     * place share a profile. The test profiles its locks in a registry of
+     * its own, which is put back when it is done, so the report is the same
+     * with or without it.
+     */
+    public static void selfTest() {
+	boolean wasEnabled = enabled;
+	HashMap<Object, LockProfile> wasProfiles = profiles;
+	long wasProfiledLocks = numProfiledLocks;
+
+	enabled = true;
+	profiles = new HashMap<Object, LockProfile>();
+	numProfiledLocks = 0;
+
+	final Lock lock = new Lock("selfTest");
+	LockProfile profile = profiles.get("selfTest");
+	Lib.assertTrue(profile.name.equals("selfTest") && profile.numLocks == 1);
+
+	final Semaphore done = new Semaphore(0);
+
+	lock.acquire();
+	KThread waiter = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    lock.release();
+		    done.V();
+		}
+	    }).setName("waiter");
+	waiter.fork();
+	ThreadedKernel.alarm.waitUntil(100);
+	lock.release();
+	done.P();
+
+	Lib.assertTrue(profile.numAcquires == 2 && profile.numContended == 1);
+	Lib.assertTrue(profile.maxWait >= 100 &&
+		       profile.topWaiters[0] == waiter &&
+		       profile.topWaits[0] == profile.totalWait);
+
+	// only the longest waiters are kept
+	LockProfile bounded = new LockProfile("bounded");
+	KThread[] threads = new KThread[reportWaiters+2];
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread();
+	    bounded.recordWait(threads[i], 10*(i+1));
+	}
+	bounded.recordWait(threads[0], 1000);
+	Lib.assertTrue(bounded.topWaiters.length == reportWaiters);
+	Lib.assertTrue(Arrays.asList(bounded.topWaiters).contains(threads[0]) &&
+		       !Arrays.asList(bounded.topWaiters).contains(threads[1]));
+
+	LockProfile[] site = new LockProfile[3];
+	for (int i=0; i<2; i++)
+	    site[i] = forLock(null);
+	site[2] = forLock(null);
+
+	Lib.assertTrue(site[0] == site[1] && site[0].numLocks == 2);
+	Lib.assertTrue(site[2] != site[0]);
+	Lib.assertTrue(profiles.size() == 3 && numProfiledLocks == 4);
+
+	enabled = wasEnabled;
+	profiles = wasProfiles;
+	numProfiledLocks = wasProfiledLocks;
+    }
+
+    private static boolean enabled = Config.getBoolean("Lock.profile", false);
+    /** The profiles, keyed by lock name or creation site. */
+    private static HashMap<Object, LockProfile> profiles =
+	new HashMap<Object, LockProfile>();
+    private static long numProfiledLocks = 0;
+    private static final int reportLocks = 10, reportWaiters = 3;
+
+    private String name;
+    private int numLocks = 0;
+    private long numAcquires = 0, numContended = 0, numTimeouts = 0;
+    private long totalWait = 0, maxWait = 0;
+    /**
+     * Bucket 0 counts holds of 0 ticks; bucket <i>i</i> counts holds of less
+     * than 2<sup>i</sup> ticks not counted in a lower bucket; the last
+     * bucket counts everything longer.
+     */
+    private long[] holdHistogram = new long[16];
+    /**
+     * The threads with the longest total waits, and those totals. The table
+     * is filled in order, so an unused slot is <tt>null</tt> and so are all
+     * after it. A thread that falls out of the table and waits again starts
+     * over from its latest wait, so the totals are a lower bound.
+     */
+    private KThread[] topWaiters = new KThread[reportWaiters];
+    private long[] topWaits = new long[reportWaiters];
+}
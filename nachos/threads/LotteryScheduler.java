@@ -2,9 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.Arrays;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -25,14 +24,20 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps the effective ticket counts of its waiting threads in a
+ * Fenwick (binary indexed) tree, so holding a lottery, adding or removing a
+ * thread, and changing a waiting thread's tickets all take O(log n) time in
+ * the number of waiting threads.
  */
-public class LotteryScheduler extends PriorityScheduler {
+public class LotteryScheduler extends TicketScheduler {
     /**
      * Allocate a new lottery scheduler.
      */
     public LotteryScheduler() {
     }
-    
+
     /**
      * Allocate a new lottery thread queue.
      *
@@ -42,7 +47,296 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    protected TicketState newTicketState(KThread thread) {
+	return new LotteryThreadState(thread);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     * Slot <i>i</i> of the Fenwick tree holds the effective tickets of the
+     * thread in <tt>slots[i]</tt>; occupied slots are always
+     * <tt>1..size</tt>, so a removal moves the last thread into the hole.
+     */
+    protected class LotteryQueue extends TicketQueue {
+	LotteryQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	/**
+	 * Hold a lottery among the waiting threads, without modifying the
+	 * state of this queue.
+	 *
+	 * @return	the winner of the lottery, or <tt>null</tt> if no threads
+	 *		are waiting.
+	 */
+	protected TicketState pickNextThread() {
+	    if (size == 0)
+		return null;
+
+	    long ticket = (long) (Lib.random() * total);
+	    if (ticket >= total)
+		ticket = total - 1;
+
+	    return slots[find(ticket)];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=1; i<=size; i++)
+		System.out.print(slots[i].thread + " [" + slots[i].effective
+				 + "] ");
+	}
+
+	/**
+	 * Add a thread to the tree, growing the tree if it is full.
+	 */
+	void insert(TicketState ticketState) {
+	    LotteryThreadState state = (LotteryThreadState) ticketState;
+
+	    if (size == capacity)
+		grow();
+
+	    size++;
+	    slots[size] = state;
+	    state.slot = size;
+	    add(size, state.effective);
+	}
+
+	/**
+	 * Remove a thread from the tree, moving the thread in the last slot
+	 * into the vacated one.
+	 */
+	void remove(TicketState ticketState) {
+	    LotteryThreadState state = (LotteryThreadState) ticketState;
+	    int slot = state.slot;
+	    LotteryThreadState last = slots[size];
+
+	    add(slot, last.effective - state.effective);
+	    add(size, -last.effective);
+
+	    slots[slot] = last;
+	    last.slot = slot;
+	    slots[size] = null;
+	    size--;
+
+	    state.slot = 0;
+	}
+
+	/**
+	 * Change the tickets held by a thread already in the tree.
+	 */
+	void update(TicketState state, long delta) {
+	    add(((LotteryThreadState) state).slot, delta);
+	}
+
+	/**
+	 * Empty the tree in one pass instead of removing the threads one at a
+	 * time.
+	 */
+	TicketState[] removeAll() {
+	    TicketState[] waiting = new TicketState[size];
+	    for (int i=1; i<=size; i++) {
+		waiting[i-1] = slots[i];
+		slots[i].slot = 0;
+		slots[i] = null;
+	    }
+
+	    Arrays.fill(tree, 0);
+	    size = 0;
+
+	    return waiting;
+	}
+
+	private void add(int slot, long delta) {
+	    for (int i=slot; i<=capacity; i+=(i & -i))
+		tree[i] += delta;
+	}
+
+	/**
+	 * Return the slot holding <i>ticket</i>, that is, the smallest slot
+	 * whose prefix sum exceeds <i>ticket</i>.
+	 */
+	private int find(long ticket) {
+	    int slot = 0;
+	    for (int step=capacity; step>0; step>>=1) {
+		if (tree[slot+step] <= ticket) {
+		    slot += step;
+		    ticket -= tree[slot];
+		}
+	    }
+	    return slot+1;
+	}
+
+	private void grow() {
+	    LotteryThreadState[] oldSlots = slots;
+
+	    capacity *= 2;
+	    slots = new LotteryThreadState[capacity+1];
+	    tree = new long[capacity+1];
+
+	    for (int i=1; i<=size; i++) {
+		slots[i] = oldSlots[i];
+		add(i, slots[i].effective);
+	    }
+	}
+
+	private int size = 0;
+	private int capacity = 4;
+	private LotteryThreadState[] slots = new LotteryThreadState[capacity+1];
+	private long[] tree = new long[capacity+1];
+    }
+
+    /**
+     * The scheduling state of a thread under the lottery scheduler: its
+     * ticket state, plus its slot in the tree of the queue it waits on.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryThreadState extends TicketState {
+	/**
+	 * Allocate a new <tt>LotteryThreadState</tt> object and associate it
+	 * with the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryThreadState(KThread thread) {
+	    super(thread);
+	}
+
+	/** The slot of the associated thread in <tt>waitingOn</tt>. */
+	int slot = 0;
+    }
+
+    /**
+     * Test that tickets are transferred, and taken back, along a chain of
+     * queues that transfer priority, and that a stale owner cannot close a
+     * donation cycle.
+     */
+    public static void selfTest() {
+	LotteryScheduler scheduler = new LotteryScheduler();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread a = new KThread().setName("a");
+	KThread b = new KThread().setName("b");
+	KThread c = new KThread().setName("c");
+
+	ThreadQueue lock1 = scheduler.newThreadQueue(true);
+	ThreadQueue lock2 = scheduler.newThreadQueue(true);
+
+	scheduler.setPriority(b, 5);
+
+	// c holds lock2, a holds lock1 and waits for lock2, b waits for lock1
+	lock2.acquire(c);
+	lock1.acquire(a);
+	lock2.waitForAccess(a);
+	lock1.waitForAccess(b);
+
+	Lib.assertTrue(scheduler.getEffectivePriority(a) == 6);
+	Lib.assertTrue(scheduler.getEffectivePriority(c) == 7);
+
+	scheduler.setPriority(b, 10);
+	Lib.assertTrue(scheduler.getEffectivePriority(c) == 12);
+
+	Lib.assertTrue(lock1.nextThread() == b);
+	Lib.assertTrue(scheduler.getEffectivePriority(a) == 1);
+	Lib.assertTrue(scheduler.getEffectivePriority(b) == 10);
+	Lib.assertTrue(scheduler.getEffectivePriority(c) == 2);
+
+	Lib.assertTrue(lock2.nextThread() == a);
+	Lib.assertTrue(scheduler.getEffectivePriority(c) == 1);
+	Lib.assertTrue(lock2.nextThread() == null);
+
+	// cycle: d was last woken from cond, so it still owns it, and waits
+	// for lock3, held by e; e then waits on cond
+	KThread d = new KThread().setName("d");
+	KThread e = new KThread().setName("e");
+
+	ThreadQueue cond = scheduler.newThreadQueue(true);
+	ThreadQueue lock3 = scheduler.newThreadQueue(true);
+
+	cond.waitForAccess(d);
+	Lib.assertTrue(cond.nextThread() == d);
+	lock3.acquire(e);
+	lock3.waitForAccess(d);
+	cond.waitForAccess(e);
+
+	Lib.assertTrue(scheduler.getEffectivePriority(d) == 1);
+	Lib.assertTrue(scheduler.getEffectivePriority(e) == 2);
+
+	Lib.assertTrue(lock3.nextThread() == d);
+	Lib.assertTrue(scheduler.getEffectivePriority(d) == 1);
+	Lib.assertTrue(scheduler.getEffectivePriority(e) == 1);
+	Lib.assertTrue(cond.nextThread() == e);
+	Lib.assertTrue(scheduler.getEffectivePriority(d) == 1);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Compare lottery scheduling against priority and round-robin
+     * scheduling. Each run holds repeated draws from one ready queue of
+     * <i>n</i> threads whose weights (tickets or priorities) range from 1 to
+     * 7, and reports the host time per draw together with how far each
+     * thread's share of the draws strays from its share of the weight.
+     */
+    public static void benchmark() {
+	int[] sizes = { 100, 1000, 4000 };
+
+	for (int i=0; i<sizes.length; i++) {
+	    benchmark("RoundRobinScheduler", new RoundRobinScheduler(),
+		      sizes[i]);
+	    benchmark("PriorityScheduler", new PriorityScheduler(), sizes[i]);
+	    benchmark("LotteryScheduler", new LotteryScheduler(), sizes[i]);
+	}
+    }
+
+    private static void benchmark(String name, Scheduler scheduler, int n) {
+	int draws = 20*n;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	HashMap<KThread, Integer> index = new HashMap<KThread, Integer>();
+	int[] weight = new int[n];
+	int[] wins = new int[n];
+	long totalWeight = 0;
+
+	for (int i=0; i<n; i++) {
+	    KThread thread = new KThread().setName("bench" + i);
+	    weight[i] = 1 + i%7;
+	    totalWeight += weight[i];
+	    index.put(thread, i);
+	    scheduler.setPriority(thread, weight[i]);
+	    queue.waitForAccess(thread);
+	}
+
+	long start = System.nanoTime();
+	for (int i=0; i<draws; i++) {
+	    KThread thread = queue.nextThread();
+	    wins[index.get(thread)]++;
+	    queue.waitForAccess(thread);
+	}
+	long elapsed = System.nanoTime() - start;
+
+	Machine.interrupt().restore(intStatus);
+
+	double error = 0;
+	int starved = 0;
+	for (int i=0; i<n; i++) {
+	    double expected = (double) draws * weight[i] / totalWeight;
+	    error += Math.abs(wins[i] - expected) / expected;
+	    if (wins[i] == 0)
+		starved++;
+	}
+
+	System.out.println(name + ": " + n + " threads, " + draws + " draws, "
+			   + (elapsed / draws) + " ns/draw, share error "
+			   + Math.round(100 * error / n) + "%, starved "
+			   + starved);
     }
 }
@@ -0,0 +1,401 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler. Threads are kept in one of several
+ * FIFO levels; the next thread to be dequeued is always the thread that has
+ * been waiting longest at the highest non-empty level.
+ *
+ * <p>
+ * A thread's level is not fixed, but depends on how it has used the
+ * processor:
+ *
+ * <ul>
+ * <li>every thread starts at the highest level (level 0);
+ * <li>a thread that is still running when it has used up the quantum of its
+ * level, as sampled at each timer interrupt, is preempted and moves down one
+ * level. Lower levels have longer quanta;
+ * <li>a thread that is woken up after blocking (on the console, the network,
+ * a lock or the alarm) moves up one level, so that interactive threads stay
+ * ahead of CPU-bound ones;
+ * <li>every <tt>boostInterval</tt> ticks all threads move back to the highest
+ * level, so that a CPU-bound thread cannot starve forever.
+ * </ul>
+ *
+ * <p>
+ * The number of levels, the quantum of the highest level, and the boost
+ * interval are read from <tt>MLFQScheduler.levels</tt>,
+ * <tt>MLFQScheduler.quantum</tt> and <tt>MLFQScheduler.boostInterval</tt> in
+ * <tt>nachos.conf</tt>. Each level's quantum is twice that of the level
+ * above it.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new multi-level feedback queue scheduler.
+     */
+    public MLFQScheduler() {
+	levels = Config.getInteger("MLFQScheduler.levels", 3);
+	Lib.assertTrue(levels > 0);
+
+	quantum = new long[levels];
+	quantum[0] = Config.getInteger("MLFQScheduler.quantum",
+				       Stats.TimerTicks);
+	for (int i=1; i<levels; i++)
+	    quantum[i] = 2*quantum[i-1];
+
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+					  20*Stats.TimerTicks);
+    }
+
+    /**
+     * Allocate a new multi-level thread queue.
+     *
+     * @param	transferPriority	ignored. Threads do not donate their
+     *					level.
+     * @return	a new multi-level thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MultiLevelQueue();
+    }
+
+    /**
+     * Return the priority of the specified thread. Level 0 has the highest
+     * priority, <tt>levels - 1</tt>.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return levels - 1 - getThreadState(thread).getLevel();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Move the specified thread to the level with the given priority. Has no
+     * effect on where the thread sits in a queue it is already waiting on.
+     */
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= 0 && priority < levels);
+
+	getThreadState(thread).setLevel(levels - 1 - priority);
+    }
+
+    /**
+     * Charge the time since the last timer interrupt to the current thread.
+     * If it has used up the quantum of its level, move it down a level and
+     * preempt it. Also boosts every thread back to the highest level when
+     * the boost interval has elapsed.
+     */
+    public boolean timerInterrupt(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+	long elapsed = time - lastTimerInterrupt;
+	lastTimerInterrupt = time;
+
+	if (time - lastBoost >= boostInterval) {
+	    lastBoost = time;
+	    boostEpoch++;
+	}
+
+	ThreadState state = getThreadState(thread);
+	state.used += elapsed;
+
+	int level = state.getLevel();
+	if (state.used < quantum[level])
+	    return false;
+
+	state.setLevel(Math.min(level+1, levels-1));
+	return true;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with one FIFO list per level.
+     */
+    protected class MultiLevelQueue extends ThreadQueue {
+	MultiLevelQueue() {
+	    @SuppressWarnings({"unchecked", "rawtypes"})
+	    LinkedList<KThread>[] lists = new LinkedList[levels];
+
+	    waitQueue = lists;
+	    for (int i=0; i<levels; i++)
+		waitQueue[i] = new LinkedList<KThread>();
+	}
+
+	/**
+	 * Add a thread to the end of the list for its level. A thread
+	 * being added by some other thread has just been woken up, so it
+	 * moves up a level first.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (thread != KThread.currentThread())
+		state.setLevel(Math.max(state.getLevel()-1, 0));
+
+	    checkBoost();
+	    waitQueue[state.getLevel()].add(thread);
+	}
+
+	/**
+	 * Remove the first thread from the highest non-empty level.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    checkBoost();
+	    for (int i=0; i<levels; i++) {
+		if (!waitQueue[i].isEmpty())
+		    return waitQueue[i].removeFirst();
+	    }
+
+	    return null;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<levels; i++) {
+		if (waitQueue[i].remove(thread))
+		    return true;
+	    }
+
+	    return false;
+	}
+
+	public int readyAll() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    int count = 0;
+	    for (int i=0; i<levels; i++) {
+		for (Iterator<KThread> i2=waitQueue[i].iterator(); i2.hasNext(); )
+		    i2.next().ready();
+		count += waitQueue[i].size();
+		waitQueue[i].clear();
+	    }
+
+	    return count;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<levels; i++)
+		Lib.assertTrue(waitQueue[i].isEmpty());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<levels; i++) {
+		for (Iterator<KThread> i2=waitQueue[i].iterator(); i2.hasNext(); )
+		    System.out.print(i2.next() + " [" + i + "] ");
+	    }
+	}
+
+	/**
+	 * If there has been a boost since this queue last looked, move every
+	 * waiting thread to the highest level, keeping the order of levels.
+	 */
+	private void checkBoost() {
+	    if (epoch == boostEpoch)
+		return;
+
+	    epoch = boostEpoch;
+	    for (int i=1; i<levels; i++) {
+		waitQueue[0].addAll(waitQueue[i]);
+		waitQueue[i].clear();
+	    }
+	}
+
+	private LinkedList<KThread>[] waitQueue;
+	private long epoch = boostEpoch;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, and the processor time it
+     * has used at that level.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    this.epoch = boostEpoch;
+	}
+
+	/**
+	 * Return the level of the associated thread. A thread whose level was
+	 * set before the last boost is back at level 0.
+	 *
+	 * @return	the level of the associated thread.
+	 */
+	public int getLevel() {
+	    if (epoch != boostEpoch)
+		setLevel(0);
+
+	    return level;
+	}
+
+	/**
+	 * Move the associated thread to the specified level, with a fresh
+	 * quantum.
+	 *
+	 * @param	level	the new level.
+	 */
+	public void setLevel(int level) {
+	    this.level = level;
+	    this.used = 0;
+	    this.epoch = boostEpoch;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The level of the associated thread. */
+	protected int level = 0;
+	/** The processor time the thread has used at its current level. */
+	protected long used = 0;
+
+	private long epoch;
+    }
+
+    /**
+     * Test that threads are dequeued by level, and that a woken thread moves
+     * up a level.
+     */
+    public static void selfTest() {
+	MLFQScheduler scheduler = new MLFQScheduler();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	KThread low = new KThread().setName("low");
+	KThread high = new KThread().setName("high");
+
+	scheduler.setPriority(low, 0);
+	scheduler.setPriority(high, scheduler.levels - 1);
+
+	queue.waitForAccess(low);
+	queue.waitForAccess(high);
+
+	Lib.assertTrue(queue.nextThread() == high);
+	Lib.assertTrue(queue.nextThread() == low);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	if (scheduler.levels > 1)
+	    Lib.assertTrue(scheduler.getPriority(low) == 1);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Measure the response time of interactive threads competing with
+     * CPU-bound threads, under the scheduler configured in
+     * <tt>ThreadedKernel.scheduler</tt>. The interactive threads stand in for
+     * threads blocked on the console: each repeatedly sleeps, then does a
+     * short burst of work. The CPU-bound threads stand in for
+     * <tt>matmult</tt>: they never block. Reports the mean and worst delay
+     * between an interactive thread becoming due and it running, and the time
+     * for the CPU-bound threads to finish.
+     */
+    public static void benchmark() {
+	final int numInteractive = 4, numCPUBound = 4;
+	final int numRequests = 20, thinkTicks = 2000;
+	final int cpuTicks = 200*Stats.TimerTicks;
+
+	final Semaphore done = new Semaphore(0);
+	final long[] delay = new long[2];
+	final long[] cpuFinish = new long[1];
+	final long start = Machine.timer().getTime();
+
+	for (int i=0; i<numInteractive; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<numRequests; j++) {
+			    long due = Machine.timer().getTime() + thinkTicks;
+			    ThreadedKernel.alarm.waitUntil(thinkTicks);
+
+			    long late = Machine.timer().getTime() - due;
+			    delay[0] += late;
+			    delay[1] = Math.max(delay[1], late);
+
+			    work(Stats.TimerTicks/5);
+			}
+			done.V();
+		    }
+		}).setName("interactive" + i).fork();
+	}
+
+	for (int i=0; i<numCPUBound; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			work(cpuTicks);
+			cpuFinish[0] = Machine.timer().getTime();
+			done.V();
+		    }
+		}).setName("cpu" + i).fork();
+	}
+
+	for (int i=0; i<numInteractive+numCPUBound; i++)
+	    done.P();
+
+	System.out.println(ThreadedKernel.scheduler.getClass().getName()
+			   + ": response mean "
+			   + delay[0] / (numInteractive*numRequests)
+			   + " ticks, max " + delay[1]
+			   + " ticks; CPU-bound threads done at "
+			   + (cpuFinish[0] - start) + " ticks");
+    }
+
+    /**
+     * Use the processor for about <i>ticks</i> ticks without blocking.
+     */
+    private static void work(long ticks) {
+	long end = Machine.timer().getTime() + ticks;
+	while (Machine.timer().getTime() < end) {
+	    Machine.interrupt().disable();
+	    Machine.interrupt().enable();
+	}
+    }
+
+    private int levels;
+    private long[] quantum;
+    private long boostInterval;
+
+    private long lastTimerInterrupt = 0;
+    private long lastBoost = 0;
+    private long boostEpoch = 0;
+}
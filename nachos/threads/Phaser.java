@@ -0,0 +1,204 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>phaser</i> is a reusable barrier whose number of parties can change.
+ * Threads <tt>register()</tt> to take part, then arrive once per phase; when
+ * every registered party has arrived, the phase number advances and every
+ * thread waiting for that phase is released. A party that is done calls
+ * <tt>arriveAndDeregister()</tt>, so the others stop waiting for it.
+ *
+ * <p>
+ * Waiting threads sleep on a single thread queue and are all made ready in one
+ * pass when the phase advances.
+ */
+public class Phaser {
+    /**
+     * Allocate a new phaser with no registered parties.
+     */
+    public Phaser() {
+	this(0);
+    }
+
+    /**
+     * Allocate a new phaser.
+     *
+     * @param	parties	the number of parties initially registered.
+     */
+    public Phaser(int parties) {
+	Lib.assertTrue(parties >= 0);
+
+	this.parties = parties;
+	this.unarrived = parties;
+    }
+
+    /**
+     * Add a party to this phaser. It must arrive before the current phase
+     * can advance.
+     *
+     * @return	the current phase number.
+     */
+    public int register() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	parties++;
+	unarrived++;
+	int result = phase;
+
+	Machine.interrupt().restore(intStatus);
+	return result;
+    }
+
+    /**
+     * Arrive at the current phase without waiting for the others.
+     *
+     * @return	the number of the phase arrived at.
+     */
+    public int arrive() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int result = arriveInternal(false);
+
+	Machine.interrupt().restore(intStatus);
+	return result;
+    }
+
+    /**
+     * Arrive at the current phase and stop being a party of this phaser.
+     *
+     * @return	the number of the phase arrived at.
+     */
+    public int arriveAndDeregister() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int result = arriveInternal(true);
+
+	Machine.interrupt().restore(intStatus);
+	return result;
+    }
+
+    /**
+     * Arrive at the current phase, and wait for the others to arrive.
+     *
+     * @return	the number of the next phase.
+     */
+    public int arriveAndAwaitAdvance() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int result = awaitInternal(arriveInternal(false));
+
+	Machine.interrupt().restore(intStatus);
+	return result;
+    }
+
+    /**
+     * Wait until the phase advances past <i>phase</i>. Returns immediately if
+     * it already has.
+     *
+     * @param	phase	the phase to wait for the end of.
+     * @return	the current phase number.
+     */
+    public int awaitAdvance(int phase) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int result = awaitInternal(phase);
+
+	Machine.interrupt().restore(intStatus);
+	return result;
+    }
+
+    /**
+     * Return the current phase number.
+     *
+     * @return	the current phase number.
+     */
+    public int getPhase() {
+	return phase;
+    }
+
+    /**
+     * Return the number of registered parties.
+     *
+     * @return	the number of registered parties.
+     */
+    public int getRegisteredParties() {
+	return parties;
+    }
+
+    private int arriveInternal(boolean deregister) {
+	Lib.assertTrue(unarrived > 0);
+
+	int arrivedAt = phase;
+
+	unarrived--;
+	if (deregister)
+	    parties--;
+
+	if (unarrived == 0) {
+	    phase++;
+	    unarrived = parties;
+	    waitQueue.readyAll();
+	}
+
+	return arrivedAt;
+    }
+
+    private int awaitInternal(int phase) {
+	// each wakeup advances the phase by one, so one sleep is enough
+	if (this.phase == phase) {
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+
+	return this.phase;
+    }
+
+    /**
+     * Test that parties advance together, and that a party that deregisters
+     * is no longer waited for.
+     */
+    public static void selfTest() {
+	final int numThreads = 6, numPhases = 4;
+	final Phaser phaser = new Phaser(1);
+	final int[] progress = new int[numThreads];
+
+	for (int i=0; i<numThreads; i++) {
+	    final int id = i;
+	    phaser.register();
+
+	    new KThread(new Runnable() {
+		    public void run() {
+			// odd threads leave after the first phase
+			int phases = (id % 2 == 0) ? numPhases : 1;
+			for (int phase=0; phase<phases-1; phase++) {
+			    progress[id]++;
+			    Lib.assertTrue(phaser.arriveAndAwaitAdvance()
+					   == phase+1);
+			}
+			progress[id]++;
+			phaser.arriveAndDeregister();
+		    }
+		}).setName("phaser" + i).fork();
+	}
+
+	for (int phase=0; phase<numPhases; phase++) {
+	    Lib.assertTrue(phaser.arriveAndAwaitAdvance() == phase+1);
+	    // no thread is more than one phase ahead of the others
+	    for (int i=0; i<numThreads; i++) {
+		int phases = (i % 2 == 0) ? numPhases : 1;
+		Lib.assertTrue(progress[i] >= Math.min(phase+1, phases) &&
+			       progress[i] <= Math.min(phase+2, phases));
+	    }
+	}
+
+	Lib.assertTrue(phaser.getRegisteredParties() == 1);
+	phaser.arriveAndDeregister();
+    }
+
+    private int parties;
+    private int unarrived;
+    private int phase = 0;
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+}
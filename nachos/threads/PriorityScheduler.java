@@ -168,6 +168,63 @@ public class PriorityScheduler extends Scheduler {
 		    return next.thread;
 		}
 
+		/**
+		 * Hand ownership to <i>thread</i>, taking this queue's donation
+		 * away from the previous owner.
+		 */
+		public void setOwner(KThread thread) {
+		    Lib.assertTrue(Machine.interrupt().disabled());
+		    if (owner != null) {
+		    	ThreadState ownerState = getThreadState(owner);
+		    	ownerState.acquiredResources.remove(this);
+		    	ownerState.resourceMap.remove(this);
+		    	owner = null;
+		    }
+		    if (thread != null) {
+		    	getThreadState(thread).acquire(this);
+		    }
+		}
+
+		/**
+		 * Ready every waiting thread without handing ownership from one to
+		 * the next, and drop the current owner's donation from this queue.
+		 */
+		public int readyAll() {
+		    Lib.assertTrue(Machine.interrupt().disabled());
+		    if (owner != null) {
+		    	ThreadState ownerState = getThreadState(owner);
+		    	ownerState.acquiredResources.remove(this);
+		    	ownerState.resourceMap.remove(this);
+		    	owner = null;
+		    }
+		    ThreadState[] waiting =
+		    	waitingThreads.toArray(new ThreadState[waitingThreads.size()]);
+		    waitingThreads.clear();
+		    for (ThreadState state : waiting) {
+		    	state.waitingOn = null;
+		    	state.thread.ready();
+		    }
+		    return waiting.length;
+		}
+
+		/**
+		 * Remove a thread that gives up waiting. The owner's cached
+		 * donation from this queue is dropped, so that it is recomputed
+		 * from the threads still waiting.
+		 */
+		public boolean remove(KThread thread) {
+		    Lib.assertTrue(Machine.interrupt().disabled());
+		    ThreadState state = getThreadState(thread);
+		    if (!waitingThreads.remove(state)) {
+		    	return false;
+		    }
+		    state.waitingOn = null;
+		    if (owner != null) {
+		    	getThreadState(owner).resourceMap.remove(this);
+		    }
+		    return true;
+		}
+
 		/**
 		 * Return the next thread that <tt>nextThread()</tt> would return,
 		 * without modifying the state of this queue.
@@ -300,7 +357,11 @@ public class PriorityScheduler extends Scheduler {
 		    if (map.keySet().size() == 0) {
 		    	return;
 		    }
-	    	int temp = map.get(waitQueue);
+	    	Integer temp = map.get(waitQueue);
+	    	if (temp == null) {
+	    		// not cached yet; computed when next needed
+	    		return;
+	    	}
 		    int newP = this.getEffectivePriority();
 		    if (newP > temp) {
 		    	state.resourceMap.put(waitQueue, newP);
@@ -321,8 +382,8 @@ public class PriorityScheduler extends Scheduler {
 			if (map.keySet().size() == 0) {
 		    	return;
 		    }
-		    int temp = map.get(waiting);
-			if (newPriority > temp) {
+		    Integer temp = map.get(waiting);
+			if (temp != null && newPriority > temp) {
 				state.resourceMap.put(waiting, newPriority);
 				if (state.waitingOn == null) {
 					return;
@@ -345,6 +406,7 @@ public class PriorityScheduler extends Scheduler {
 		    // implement me
 		    waitQueue.owner = this.thread;
 		    acquiredResources.add(waitQueue);
+		    resourceMap.remove(waitQueue);
 		}	
 
 		public int compareTo(Object t) {
@@ -0,0 +1,324 @@
+package nachos.threads;
+
+import java.util.LinkedHashSet;
+import nachos.machine.*;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that may be held either by any number of
+ * <i>readers</i> at once, or by a single <i>writer</i>. It protects data that
+ * is read much more often than it is changed, where a plain <tt>Lock</tt>
+ * would needlessly make readers wait for each other.
+ *
+ * <p>
+ * Writers are preferred: once a writer is waiting, new readers wait too, so a
+ * steady stream of readers cannot starve it. When a writer releases the lock,
+ * every reader that was waiting at that moment is admitted together before the
+ * next writer, so writers cannot starve readers either.
+ *
+ * <p>
+ * If the lock transfers priority, threads waiting for it donate priority to a
+ * thread holding it: the writer, or one of the readers. When that reader
+ * releases the lock while others still hold it, the donation moves to the
+ * reader that has held it longest, so it always reaches a thread that is
+ * keeping the waiters waiting.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new read-write lock that transfers priority. The lock will
+     * initially be free.
+     */
+    public ReadWriteLock() {
+	this(true);
+    }
+
+    /**
+     * Allocate a new read-write lock. The lock will initially be free.
+     *
+     * @param	transferPriority	<tt>true</tt> if threads waiting for
+     *					this lock should donate priority to
+     *					a thread holding it.
+     */
+    public ReadWriteLock(boolean transferPriority) {
+	readQueue = ThreadedKernel.scheduler.newThreadQueue(transferPriority);
+	writeQueue = ThreadedKernel.scheduler.newThreadQueue(transferPriority);
+    }
+
+    /**
+     * Atomically wait until no writer holds or is waiting for this lock, and
+     * then acquire it for reading. The current thread must not already hold
+     * this lock.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer == null && waitingWriters == 0) {
+	    readers.add(thread);
+	    if (holder == null)
+		setHolder(thread);
+	}
+	else {
+	    waitingReaders++;
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(readers.contains(thread));
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock for reading. If this was the last reader,
+     * a waiting writer acquires the lock.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	boolean removed = readers.remove(thread);
+	Lib.assertTrue(removed);
+
+	if (readers.isEmpty()) {
+	    if (waitingWriters > 0)
+		admitWriter();
+	    else
+		setHolder(null);
+	}
+	else if (holder == thread) {
+	    setHolder(readers.iterator().next());
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically wait until this lock is free, and then acquire it for
+     * writing. The current thread must not already hold this lock.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer == null && readers.isEmpty()) {
+	    writer = thread;
+	    setHolder(thread);
+	}
+	else {
+	    waitingWriters++;
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock for writing. Every reader waiting for the
+     * lock acquires it, or if there are none, the next waiting writer does.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(writer == KThread.currentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	writer = null;
+	if (waitingReaders > 0)
+	    admitReaders();
+	else if (waitingWriters > 0)
+	    admitWriter();
+	else
+	    setHolder(null);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock, for reading or writing.
+     *
+     * @return	true if the current thread holds this lock.
+     */
+    public boolean isHeldByCurrentThread() {
+	KThread thread = KThread.currentThread();
+	return (writer == thread || readers.contains(thread));
+    }
+
+    private void admitWriter() {
+	writer = writeQueue.nextThread();
+	waitingWriters--;
+	setHolder(writer);
+	writer.ready();
+    }
+
+    private void admitReaders() {
+	KThread thread = null;
+	for (; waitingReaders > 0; waitingReaders--) {
+	    thread = readQueue.nextThread();
+	    readers.add(thread);
+	    thread.ready();
+	}
+	setHolder(thread);
+    }
+
+    /**
+     * Make <i>thread</i> the holder that waiting threads donate priority to.
+     */
+    private void setHolder(KThread thread) {
+	holder = thread;
+	readQueue.setOwner(thread);
+	writeQueue.setOwner(thread);
+    }
+
+    /**
+     * Test that readers share the lock, that a waiting writer keeps new
+     * readers out, and that a waiting writer donates priority to a reader.
+     */
+    public static void selfTest() {
+	final ReadWriteLock lock = new ReadWriteLock();
+	final int[] state = new int[3];	// readers inside, max inside, writes
+	final Semaphore done = new Semaphore(0);
+	final boolean donation =
+	    (ThreadedKernel.scheduler instanceof PriorityScheduler);
+
+	lock.acquireRead();
+
+	final int numReaders = 4;
+	for (int i=0; i<numReaders; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			lock.acquireRead();
+			state[0]++;
+			state[1] = Math.max(state[1], state[0]);
+			KThread.yield();
+			state[0]--;
+			lock.releaseRead();
+			done.V();
+		    }
+		}).setName("reader" + i).fork();
+	}
+
+	KThread writer = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquireWrite();
+		    Lib.assertTrue(state[0] == 0);
+		    state[2]++;
+		    lock.releaseWrite();
+		    done.V();
+		}
+	    }).setName("writer");
+
+	if (donation) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    ThreadedKernel.scheduler.setPriority(writer,
+		ThreadedKernel.scheduler.getPriority() + 1);
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	// let the readers in, then queue the writer behind this reader
+	ThreadedKernel.alarm.waitUntil(100);
+	Lib.assertTrue(state[1] > 1);
+
+	writer.fork();
+	ThreadedKernel.alarm.waitUntil(100);
+	Lib.assertTrue(state[2] == 0);
+
+	// a reader arriving now must wait for the writer
+	new KThread(new Runnable() {
+		public void run() {
+		    lock.acquireRead();
+		    Lib.assertTrue(state[2] == 1);
+		    lock.releaseRead();
+		    done.V();
+		}
+	    }).setName("late reader").fork();
+	ThreadedKernel.alarm.waitUntil(100);
+
+	if (donation) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority() >
+			   ThreadedKernel.scheduler.getPriority());
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	lock.releaseRead();
+	for (int i=0; i<numReaders+2; i++)
+	    done.P();
+	Lib.assertTrue(state[2] == 1);
+    }
+
+    /**
+     * Compare the throughput of this lock with a plain <tt>Lock</tt>, on a
+     * mix of 90% reads and 10% writes. Each critical section blocks for a
+     * while, as if waiting for a disk, so readers that can share the lock
+     * overlap their waits.
+     */
+    public static void benchmark() {
+	for (int pass=0; pass<2; pass++) {
+	    final boolean shared = (pass == 1);
+	    final Lock plainLock = new Lock();
+	    final ReadWriteLock rwLock = new ReadWriteLock();
+	    final Semaphore done = new Semaphore(0);
+	    final int numThreads = 10, numOps = 50, holdTicks = 100;
+
+	    long startTicks = Machine.timer().getTime();
+	    long startTime = System.nanoTime();
+
+	    for (int i=0; i<numThreads; i++) {
+		new KThread(new Runnable() {
+			public void run() {
+			    for (int j=0; j<numOps; j++) {
+				boolean write = (Lib.random(10) == 0);
+
+				if (!shared)
+				    plainLock.acquire();
+				else if (write)
+				    rwLock.acquireWrite();
+				else
+				    rwLock.acquireRead();
+
+				ThreadedKernel.alarm.waitUntil(holdTicks);
+
+				if (!shared)
+				    plainLock.release();
+				else if (write)
+				    rwLock.releaseWrite();
+				else
+				    rwLock.releaseRead();
+			    }
+			    done.V();
+			}
+		    }).setName("rw" + i).fork();
+	    }
+
+	    for (int i=0; i<numThreads; i++)
+		done.P();
+
+	    long ticks = Machine.timer().getTime() - startTicks;
+	    long elapsed = System.nanoTime() - startTime;
+	    int ops = numThreads * numOps;
+
+	    System.out.println(ThreadedKernel.scheduler.getClass().getName()
+			       + ": " + (shared ? "ReadWriteLock" : "Lock")
+			       + ", 90% reads, " + ops + " operations, "
+			       + ticks + " ticks, "
+			       + (ticks / ops) + " ticks/op, "
+			       + (elapsed / ops) + " ns/op");
+	}
+    }
+
+    private KThread writer = null;
+    /** The readers holding the lock, in the order they acquired it. */
+    private LinkedHashSet<KThread> readers = new LinkedHashSet<KThread>();
+    /** The holder that waiting threads donate priority to. */
+    private KThread holder = null;
+    private int waitingReaders = 0, waitingWriters = 0;
+
+    private ThreadQueue readQueue;
+    private ThreadQueue writeQueue;
+}
@@ -5,6 +5,17 @@ import nachos.machine.*;
 /**
  * A single rider. Each rider accesses the elevator bank through an
  * instance of <tt>RiderControls</tt>.
+ *
+ * <p>
+ * The rider sleeps until the elevator bank posts it an event; it never polls.
+ * To make a stop, it presses the hall button for its direction and boards the
+ * first elevator that opens on its floor going that way. If the elevator is
+ * full, the rider presses the button again once the doors close. Inside, it
+ * presses the button for its stop and gets off when the doors open there.
+ *
+ * <p>
+ * The rider records how long it waited for an elevator and how long it rode
+ * for each stop, for the load test in <tt>ElevatorHarness</tt>.
  */
 public class Rider implements RiderInterface {
     /**
@@ -12,7 +23,7 @@ public class Rider implements RiderInterface {
      */
     public Rider() {
     }
-    
+
     /**
      * Initialize this rider. The rider will access the elevator bank through
      * <i>controls</i>, and the rider will make stops at different floors as
@@ -28,6 +39,15 @@ public class Rider implements RiderInterface {
      *				below.
      */
     public void initialize(RiderControls controls, int[] stops) {
+	this.controls = controls;
+	this.stops = stops;
+
+	waitTicks = new long[stops.length];
+	rideTicks = new long[stops.length];
+
+	controls.setInterruptHandler(new Runnable() {
+		public void run() { eventWait.V(); }
+	    });
     }
 
     /**
@@ -48,5 +68,121 @@ public class Rider implements RiderInterface {
      * <tt>controls.finish()</tt> when the rider is finished.
      */
     public void run() {
+	for (int i=0; i<stops.length; i++) {
+	    int floor = controls.getFloor();
+	    Lib.assertTrue(stops[i] != floor);
+
+	    long start = Machine.timer().getTime();
+	    int elevator = board(floor, stops[i] > floor ? dirUp : dirDown);
+
+	    long boarded = Machine.timer().getTime();
+	    ride(elevator, stops[i]);
+
+	    waitTicks[i] = boarded - start;
+	    rideTicks[i] = Machine.timer().getTime() - boarded;
+	}
+
+	controls.finish();
+	Lib.assertNotReached();
+    }
+
+    /**
+     * Wait on <i>floor</i> for an elevator going in <i>direction</i>, and get
+     * on it.
+     *
+     * @return	the elevator the rider got on.
+     */
+    private int board(int floor, int direction) {
+	int elevator = call(direction);
+
+	while (elevator == -1) {
+	    RiderEvent e = getNextEvent();
+	    if (e.floor != floor)
+		continue;
+
+	    if ((e.event == RiderEvent.eventDoorsOpened ||
+		 e.event == RiderEvent.eventDirectionChanged) &&
+		e.direction == direction) {
+		if (controls.enterElevator(e.elevator))
+		    elevator = e.elevator;
+	    }
+	    else if (e.event == RiderEvent.eventDoorsClosed) {
+		// the call may have been answered by a full elevator
+		elevator = call(direction);
+	    }
+	}
+
+	return elevator;
+    }
+
+    /**
+     * Press the hall button for <i>direction</i>. If an elevator is already
+     * open here going that way, the button does nothing, so try to get on.
+     *
+     * @return	the elevator the rider got on, or -1.
+     */
+    private int call(int direction) {
+	if (controls.pressDirectionButton(direction == dirUp))
+	    return -1;
+
+	for (int i=0; i<controls.getNumElevators(); i++) {
+	    if (controls.getDirectionDisplay(i) == direction &&
+		controls.enterElevator(i))
+		return i;
+	}
+	return -1;
     }
+
+    /**
+     * Ride <i>elevator</i> to <i>stop</i> and get off.
+     */
+    private void ride(int elevator, int stop) {
+	controls.pressFloorButton(stop);
+
+	while (true) {
+	    RiderEvent e = getNextEvent();
+	    if (e.event != RiderEvent.eventDoorsOpened || e.floor != stop)
+		continue;
+
+	    if (controls.exitElevator(stop))
+		return;
+
+	    // the doors closed before this rider saw them open
+	    while (!controls.pressFloorButton(stop)) {
+		if (controls.exitElevator(stop))
+		    return;
+	    }
+	}
+    }
+
+    private RiderEvent getNextEvent() {
+	RiderEvent event;
+	while ((event = controls.getNextEvent()) == null)
+	    eventWait.P();
+
+	return event;
+    }
+
+    /**
+     * Return the ticks this rider waited for an elevator before each stop.
+     *
+     * @return	the wait before each stop.
+     */
+    public long[] getWaitTicks() {
+	return waitTicks;
+    }
+
+    /**
+     * Return the ticks this rider spent in an elevator going to each stop.
+     *
+     * @return	the ride to each stop.
+     */
+    public long[] getRideTicks() {
+	return rideTicks;
+    }
+
+    private RiderControls controls;
+    private int[] stops;
+    private long[] waitTicks, rideTicks;
+    private Semaphore eventWait = new Semaphore(0);
 }
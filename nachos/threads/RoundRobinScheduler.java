@@ -69,6 +69,26 @@ public class RoundRobinScheduler extends Scheduler {
 	    Lib.assertTrue(waitQueue.isEmpty());
 	}
 
+	/**
+	 * Remove a thread from anywhere in the queue.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    return waitQueue.remove(thread);
+	}
+
+	public int readyAll() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    int count = waitQueue.size();
+	    for (Iterator<KThread> i=waitQueue.iterator(); i.hasNext(); )
+		i.next().ready();
+	    waitQueue.clear();
+
+	    return count;
+	}
+
 	/**
 	 * Print out the contents of the queue.
 	 */
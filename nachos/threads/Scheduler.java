@@ -131,6 +131,88 @@ public abstract class Scheduler {
 	setPriority(KThread.currentThread(), priority);
     }
 
+    /**
+     * Called by the alarm on every timer interrupt, with interrupts disabled.
+     * A scheduler that preempts threads returns <tt>true</tt> if the current
+     * thread has used up its time slice and should yield the processor.
+     *
+     * @param	thread	the current thread.
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean timerInterrupt(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return false;
+    }
+
+    /**
+     * Called by <tt>KThread</tt> with interrupts disabled whenever the
+     * processor is dispatched from <i>previous</i> to <i>next</i>, before the
+     * state of <i>previous</i> is saved. The two threads may be the same.
+     * Schedulers that account for processor time do so here.
+     *
+     * @param	previous	the thread giving up the processor.
+     * @param	next		the thread about to run.
+     */
+    public void contextSwitch(KThread previous, KThread next) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Try to make the specified thread a periodic real-time thread. Each
+     * <i>period</i> ticks the thread is released to run a job that must use
+     * at most <i>budget</i> ticks of processor time and must finish within
+     * <i>deadline</i> ticks of its release. Must be called with interrupts
+     * disabled.
+     *
+     * <p>
+     * A scheduler that supports real-time threads performs admission control
+     * here, and refuses a thread whose reservation cannot be guaranteed. By
+     * default, real-time threads are not supported.
+     *
+     * @param	thread		the thread to make real-time.
+     * @param	period		the time between releases of the thread.
+     * @param	deadline	the time after each release by which the job
+     *				must finish.
+     * @param	budget		the processor time each job may use.
+     * @return	<tt>true</tt> if the thread was admitted.
+     */
+    public boolean admitRealTime(KThread thread, long period, long deadline,
+				 long budget) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return false;
+    }
+
+    /**
+     * Return the specified thread to normal scheduling, releasing its
+     * real-time reservation if it has one. Must be called with interrupts
+     * disabled.
+     *
+     * @param	thread	the thread.
+     */
+    public void cancelRealTime(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Called when a real-time thread has finished its current job. Must be
+     * called with interrupts disabled.
+     *
+     * @param	thread	the thread that has finished a job.
+     * @return	the time at which the thread's next job is released, or the
+     *		current time if the thread is not a real-time thread.
+     */
+    public long finishJob(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return Machine.timer().getTime();
+    }
+
+    /**
+     * Print out any statistics kept by this scheduler. Called when the kernel
+     * terminates, if <tt>Kernel.stats</tt> is set.
+     */
+    public void printStats() {
+    }
+
     /**
      * If possible, raise the priority of the current thread in some
      * scheduler-dependent way.
@@ -0,0 +1,116 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * Scheduling statistics kept for every scheduler. <tt>KThread</tt> reports
+ * each change of a thread's status, and this class keeps the length of the
+ * ready queue over time, how long threads waited on it before being
+ * dispatched, and where finished threads spent their lives.
+ *
+ * <p>
+ * These statistics are kept here rather than in the machine's <tt>Stats</tt>:
+ * that class is part of the machine simulation, and the only instance is
+ * private to <tt>Machine</tt>. When <tt>Kernel.stats</tt> is set in
+ * <tt>nachos.conf</tt>, <tt>ThreadedKernel.terminate()</tt> prints them just
+ * before the machine prints its own.
+ */
+public class SchedulerStats {
+    /**
+     * Record that the ready queue grew or shrank by <i>delta</i> threads at
+     * <i>time</i>. The idle thread is not counted.
+     */
+    static void readyQueueChanged(int delta, long time) {
+	readyLengthIntegral += (long) readyLength * (time - lastChange);
+	lastChange = time;
+
+	readyLength += delta;
+	Lib.assertTrue(readyLength >= 0);
+	maxReadyLength = Math.max(maxReadyLength, readyLength);
+    }
+
+    /**
+     * Record that a thread was dispatched after waiting <i>waited</i> ticks
+     * on the ready queue.
+     */
+    static void dispatched(long waited) {
+	numDispatches++;
+	totalReadyWait += waited;
+	maxReadyWait = Math.max(maxReadyWait, waited);
+    }
+
+    /**
+     * Record the times of a thread that has just finished.
+     */
+    static void threadFinished(KThread thread) {
+	numFinished++;
+	finishedReadyTicks += thread.getReadyTicks();
+	finishedRunningTicks += thread.getRunningTicks();
+	finishedBlockedTicks += thread.getBlockedTicks();
+    }
+
+    /**
+     * Print the statistics gathered so far.
+     */
+    public static void print() {
+	long time = Machine.timer().getTime();
+	long integral =
+	    readyLengthIntegral + (long) readyLength * (time - lastChange);
+	long idleTicks = KThread.getIdleTicks();
+
+	System.out.println("Scheduler: " + numFinished + " threads finished"
+			   + " (running " + finishedRunningTicks
+			   + ", ready " + finishedReadyTicks
+			   + ", blocked " + finishedBlockedTicks + " ticks)");
+	System.out.println("Scheduler: " + numDispatches + " dispatches, "
+			   + KThread.getNumContextSwitches()
+			   + " context switches, ready wait "
+			   + (numDispatches > 0 ?
+			      totalReadyWait / numDispatches : 0)
+			   + " mean, " + maxReadyWait + " max ticks");
+	System.out.println("Scheduler: ready queue length "
+			   + format(time > 0 ? (double) integral / time : 0)
+			   + " mean, " + maxReadyLength + " max; idle "
+			   + idleTicks + " ticks ("
+			   + format(time > 0 ? 100.0 * idleTicks / time : 0)
+			   + "%)");
+    }
+
+    private static String format(double x) {
+	return String.valueOf(Math.round(x * 100) / 100.0);
+    }
+
+    /**
+     * Test that a thread's ready, running and blocked times add up, and that
+     * sleeping is charged as blocked time.
+     */
+    public static void selfTest() {
+	final Semaphore done = new Semaphore(0);
+	final long sleepTicks = 1000;
+
+	KThread sleeper = new KThread(new Runnable() {
+		public void run() {
+		    ThreadedKernel.alarm.waitUntil(sleepTicks);
+		    done.V();
+		}
+	    }).setName("sleeper");
+
+	long startDispatches = numDispatches;
+	sleeper.fork();
+	done.P();
+
+	Lib.assertTrue(sleeper.getBlockedTicks() >= sleepTicks);
+	Lib.assertTrue(numDispatches > startDispatches);
+	Lib.assertTrue(maxReadyLength >= 1);
+    }
+
+    private static int readyLength = 0, maxReadyLength = 0;
+    private static long readyLengthIntegral = 0, lastChange = 0;
+
+    private static long numDispatches = 0;
+    private static long totalReadyWait = 0, maxReadyWait = 0;
+
+    private static long numFinished = 0;
+    private static long finishedReadyTicks = 0, finishedRunningTicks = 0,
+	finishedBlockedTicks = 0;
+}
@@ -48,6 +48,34 @@ public class Semaphore {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically wait for this semaphore to become non-zero and decrement it,
+     * giving up after <i>ticks</i> clock ticks.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait. If 0, do
+     *			not wait at all.
+     * @return	<tt>true</tt> if the semaphore was decremented, or
+     *		<tt>false</tt> if the wait timed out.
+     */
+    public boolean P(long ticks) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean acquired;
+	if (value > 0) {
+	    value--;
+	    acquired = true;
+	}
+	else if (ticks > 0) {
+	    acquired = ThreadedKernel.alarm.sleepOn(waitQueue, ticks);
+	}
+	else {
+	    acquired = false;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
     /**
      * Atomically increment this semaphore and wake up at most one other thread
      * sleeping on this semaphore.
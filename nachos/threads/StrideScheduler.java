@@ -0,0 +1,388 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that gives threads proportional shares deterministically, using
+ * stride scheduling.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread. Each thread also has a <i>stride</i>, inversely
+ * proportional to its tickets, and a <i>pass</i>. The next thread to be
+ * dequeued is always the waiting thread with the smallest pass. Whenever a
+ * thread stops running, its pass advances by its stride for each
+ * <tt>Stats.TimerTicks</tt> it ran, so each thread's share of the processor
+ * differs from its share of the tickets by at most one quantum, rather than
+ * by the random error of a lottery. Only processor time is charged: waiting
+ * for and being handed a lock, semaphore or join costs nothing.
+ *
+ * <p>
+ * Tickets are transferred through locks and joins in the same way as in a
+ * lottery scheduler: the owner of a queue that transfers priority holds its
+ * own tickets plus those of every thread waiting on the queue.
+ *
+ * <p>
+ * Each queue keeps its waiting threads in an array-based binary min-heap
+ * ordered by pass, so every queue operation takes O(log n) time.
+ */
+public class StrideScheduler extends TicketScheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority);
+    }
+
+    protected TicketState newTicketState(KThread thread) {
+	return new StrideThreadState(thread);
+    }
+
+    /**
+     * Charge <i>previous</i> for the time it ran, if it was not already
+     * charged when it started waiting, and start the clock for <i>next</i>.
+     */
+    public void contextSwitch(KThread previous, KThread next) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+
+	stopped(previous, time);
+	started(next, time);
+    }
+
+    /**
+     * The stride of a thread holding a single ticket. A thread holding
+     * <i>t</i> tickets has a stride of <tt>stride1 / t</tt>.
+     */
+    public static final long stride1 = 1L << 30;
+
+    /**
+     * Note that <i>thread</i> was dispatched at <i>time</i>.
+     */
+    void started(KThread thread, long time) {
+	StrideThreadState state = (StrideThreadState) getTicketState(thread);
+
+	state.running = true;
+	state.runStart = time;
+	globalPass = Math.max(globalPass, state.pass);
+    }
+
+    /**
+     * Note that <i>thread</i> stopped running at <i>time</i>, and charge it
+     * for the time it ran.
+     */
+    void stopped(KThread thread, long time) {
+	((StrideThreadState) getTicketState(thread)).stopped(time);
+    }
+
+    /**
+     * The pass of the most recently dispatched thread. A thread that wakes
+     * up starts no earlier than this, so time spent blocked cannot be saved
+     * up.
+     */
+    private long globalPass = 0;
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the
+     * smallest pass. Ties go to the thread that has been waiting longest.
+     */
+    protected class StrideQueue extends TicketQueue {
+	StrideQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected TicketState pickNextThread() {
+	    return (size == 0) ? null : heap[0];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++)
+		System.out.print(heap[i].thread + " [" + heap[i].pass + "] ");
+	}
+
+	/**
+	 * Add a thread to the heap. A running thread is charged for the time
+	 * it has run before its pass is used as a key; any other thread is
+	 * waking up, and starts no earlier than the scheduler's pass.
+	 */
+	void insert(TicketState ticketState) {
+	    StrideThreadState state = (StrideThreadState) ticketState;
+
+	    if (state.running)
+		state.stopped(Machine.timer().getTime());
+	    else
+		state.pass = Math.max(state.pass, globalPass);
+
+	    if (size == heap.length) {
+		StrideThreadState[] newHeap = new StrideThreadState[2*size];
+		System.arraycopy(heap, 0, newHeap, 0, size);
+		heap = newHeap;
+	    }
+
+	    state.sequence = numInserted++;
+	    heap[size] = state;
+	    state.heapIndex = size;
+	    size++;
+	    siftUp(state.heapIndex);
+	}
+
+	void remove(TicketState ticketState) {
+	    StrideThreadState state = (StrideThreadState) ticketState;
+	    int i = state.heapIndex;
+
+	    size--;
+	    if (i != size) {
+		heap[i] = heap[size];
+		heap[i].heapIndex = i;
+		siftDown(i);
+		siftUp(i);
+	    }
+	    heap[size] = null;
+
+	    state.heapIndex = -1;
+	}
+
+	/**
+	 * The heap is ordered by pass alone, so a change in tickets does not
+	 * move a waiting thread.
+	 */
+	void update(TicketState state, long delta) {
+	}
+
+	TicketState[] removeAll() {
+	    TicketState[] waiting = new TicketState[size];
+	    for (int i=0; i<size; i++) {
+		waiting[i] = heap[i];
+		heap[i].heapIndex = -1;
+		heap[i] = null;
+	    }
+
+	    size = 0;
+
+	    return waiting;
+	}
+
+	private void siftUp(int i) {
+	    while (i > 0) {
+		int parent = (i-1)/2;
+		if (!heap[i].before(heap[parent]))
+		    break;
+		swap(i, parent);
+		i = parent;
+	    }
+	}
+
+	private void siftDown(int i) {
+	    while (true) {
+		int least = i;
+		int left = 2*i + 1, right = left + 1;
+
+		if (left < size && heap[left].before(heap[least]))
+		    least = left;
+		if (right < size && heap[right].before(heap[least]))
+		    least = right;
+		if (least == i)
+		    break;
+
+		swap(i, least);
+		i = least;
+	    }
+	}
+
+	private void swap(int i, int j) {
+	    StrideThreadState temp = heap[i];
+	    heap[i] = heap[j];
+	    heap[j] = temp;
+	    heap[i].heapIndex = i;
+	    heap[j].heapIndex = j;
+	}
+
+	private StrideThreadState[] heap = new StrideThreadState[4];
+	private int size = 0;
+	private long numInserted = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under the stride scheduler: its
+     * ticket state, its pass, and whether it is running.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class StrideThreadState extends TicketState {
+	/**
+	 * Allocate a new <tt>StrideThreadState</tt> object and associate it
+	 * with the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public StrideThreadState(KThread thread) {
+	    super(thread);
+	}
+
+	/**
+	 * Return the stride of the associated thread, based on its effective
+	 * tickets.
+	 *
+	 * @return	the stride of the associated thread.
+	 */
+	public long stride() {
+	    return Math.max(stride1 / effective, 1);
+	}
+
+	/**
+	 * If the associated thread is running, advance its pass by its stride
+	 * for each quantum it has run since <tt>runStart</tt>, and note that it
+	 * is no longer running.
+	 */
+	void stopped(long time) {
+	    if (!running)
+		return;
+
+	    pass += stride() * (time - runStart) / Stats.TimerTicks;
+	    running = false;
+	}
+
+	/**
+	 * Return <tt>true</tt> if this thread should be dequeued before
+	 * <i>state</i>.
+	 */
+	boolean before(StrideThreadState state) {
+	    if (pass != state.pass)
+		return pass < state.pass;
+
+	    return sequence < state.sequence;
+	}
+
+	/** The virtual time at which the associated thread is next due. */
+	protected long pass = 0;
+	/** <tt>true</tt> if the thread is running and not yet charged. */
+	boolean running = false;
+	/** The time at which the thread was last dispatched. */
+	long runStart;
+
+	int heapIndex = -1;
+	long sequence;
+    }
+
+    /**
+     * Test that shares of processor time are proportional to tickets over
+     * short windows, that a thread which keeps blocking on a lock is not
+     * charged for it, and that tickets are transferred along a chain of
+     * queues.
+     */
+    public static void selfTest() {
+	StrideScheduler scheduler = new StrideScheduler();
+	final int quantum = Stats.TimerTicks;
+	long time = 0;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// shares: threads with 1, 2 and 3 tickets each running a quantum at a
+	// time, in every window of 6 quanta
+	ThreadQueue readyQueue = scheduler.newThreadQueue(false);
+	KThread[] threads = new KThread[3];
+	for (int i=0; i<3; i++) {
+	    threads[i] = new KThread().setName("stride" + i);
+	    scheduler.setPriority(threads[i], i+1);
+	    readyQueue.waitForAccess(threads[i]);
+	}
+
+	int[] runs = new int[3];
+	for (int window=0; window<10; window++) {
+	    for (int i=0; i<6; i++) {
+		KThread thread = readyQueue.nextThread();
+		scheduler.started(thread, time);
+		time += quantum;
+		scheduler.stopped(thread, time);
+		for (int j=0; j<3; j++) {
+		    if (threads[j] == thread)
+			runs[j]++;
+		}
+		readyQueue.waitForAccess(thread);
+	    }
+	    for (int j=0; j<3; j++)
+		Lib.assertTrue(Math.abs(runs[j] - (window+1)*(j+1)) <= 1);
+	}
+
+	// blocking: x runs half a quantum, then waits for a lock held by h and
+	// is handed it; y runs whole quanta. With equal tickets they must get
+	// equal processor time.
+	KThread x = new KThread().setName("x");
+	KThread y = new KThread().setName("y");
+	KThread h = new KThread().setName("h");
+
+	readyQueue = scheduler.newThreadQueue(false);
+	ThreadQueue lock = scheduler.newThreadQueue(true);
+	readyQueue.waitForAccess(x);
+	readyQueue.waitForAccess(y);
+
+	long xTicks = 0, yTicks = 0;
+	for (int i=0; i<100; i++) {
+	    KThread thread = readyQueue.nextThread();
+	    scheduler.started(thread, time);
+
+	    if (thread == x) {
+		time += quantum/2;
+		xTicks += quantum/2;
+		scheduler.stopped(x, time);
+
+		lock.acquire(h);
+		lock.waitForAccess(x);
+		Lib.assertTrue(lock.nextThread() == x);
+	    }
+	    else {
+		time += quantum;
+		yTicks += quantum;
+		scheduler.stopped(y, time);
+	    }
+
+	    readyQueue.waitForAccess(thread);
+	    Lib.assertTrue(Math.abs(xTicks - yTicks) <= quantum);
+	}
+
+	// transfer: c holds lock2, a holds lock1 and waits for lock2, b waits
+	// for lock1
+	KThread a = new KThread().setName("a");
+	KThread b = new KThread().setName("b");
+	KThread c = new KThread().setName("c");
+
+	ThreadQueue lock1 = scheduler.newThreadQueue(true);
+	ThreadQueue lock2 = scheduler.newThreadQueue(true);
+
+	scheduler.setPriority(b, 5);
+	lock2.acquire(c);
+	lock1.acquire(a);
+	lock2.waitForAccess(a);
+	lock1.waitForAccess(b);
+
+	Lib.assertTrue(scheduler.getEffectivePriority(c) == 7);
+
+	Lib.assertTrue(lock1.nextThread() == b);
+	Lib.assertTrue(scheduler.getEffectivePriority(c) == 2);
+	Lib.assertTrue(lock2.nextThread() == a);
+	Lib.assertTrue(scheduler.getEffectivePriority(c) == 1);
+
+	Machine.interrupt().restore(intStatus);
+    }
+}
@@ -0,0 +1,356 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+
+/**
+ * A <tt>TaskExecutor</tt> runs short pieces of kernel work on a fixed pool of
+ * worker threads, so that work like delivering a message or zeroing a page
+ * does not pay for creating a <tt>KThread</tt> and its <tt>TCB</tt>.
+ *
+ * <p>
+ * Each worker has its own deque of tasks. A task submitted by a worker goes
+ * on the back of that worker's deque, and the worker takes its own tasks from
+ * the back, so related work runs together. A task submitted by any other
+ * thread is dealt to the workers in turn. A worker whose deque is empty steals
+ * the oldest task from the front of another worker's deque before it goes to
+ * sleep. An idle worker is woken only when a task arrives and no worker is
+ * already looking for work.
+ *
+ * <p>
+ * The deques are only touched with interrupts disabled, which is enough on
+ * the single Nachos processor. Tasks themselves run with interrupts enabled.
+ */
+public class TaskExecutor {
+    /**
+     * Allocate a new executor and fork its workers.
+     *
+     * @param	numWorkers	the number of worker threads.
+     */
+    public TaskExecutor(int numWorkers) {
+	Lib.assertTrue(numWorkers > 0);
+
+	workers = new Worker[numWorkers];
+	for (int i=0; i<numWorkers; i++)
+	    workers[i] = new Worker(i);
+	numSearching = numWorkers;
+
+	for (int i=0; i<numWorkers; i++)
+	    workers[i].thread.fork();
+    }
+
+    /**
+     * Queue <i>work</i> to run on one of the workers.
+     *
+     * @param	work	the work to run.
+     * @return	a handle that can be used to wait for the work to finish.
+     */
+    public Task submit(Runnable work) {
+	Lib.assertTrue(work != null);
+
+	Task task = new Task(work);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(!shutdown);
+
+	Worker worker = currentWorker();
+	if (worker != null) {
+	    worker.tasks.addLast(task);
+	}
+	else {
+	    workers[nextWorker].tasks.addLast(task);
+	    nextWorker = (nextWorker+1) % workers.length;
+	}
+	numQueued++;
+
+	// a worker that is awake will find the task, possibly by stealing it
+	if (numSearching == 0 && numIdle > 0)
+	    wakeWorker();
+
+	Machine.interrupt().restore(intStatus);
+
+	return task;
+    }
+
+    /**
+     * Wait for every task already submitted to finish, then stop the workers
+     * and wait for them to finish. No tasks may be submitted afterwards.
+     */
+    public void shutdown() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(!shutdown && currentWorker() == null);
+	shutdown = true;
+	idleQueue.readyAll();
+	numSearching += numIdle;
+	numIdle = 0;
+
+	Machine.interrupt().restore(intStatus);
+
+	KThread[] threads = new KThread[workers.length];
+	for (int i=0; i<workers.length; i++)
+	    threads[i] = workers[i].thread;
+	KThread.joinAll(threads);
+    }
+
+    /**
+     * Return the worker the current thread is, or <tt>null</tt> if it is not
+     * one of this executor's workers.
+     */
+    private Worker currentWorker() {
+	KThread thread = KThread.currentThread();
+	for (int i=0; i<workers.length; i++) {
+	    if (workers[i].thread == thread)
+		return workers[i];
+	}
+	return null;
+    }
+
+    private void wakeWorker() {
+	KThread thread = idleQueue.nextThread();
+	Lib.assertTrue(thread != null);
+	numIdle--;
+	numSearching++;
+	thread.ready();
+    }
+
+    /**
+     * Take the next task for <i>worker</i>: the newest of its own, or else
+     * the oldest of another worker's. Returns <tt>null</tt> if every deque
+     * is empty.
+     */
+    private Task take(Worker worker) {
+	Task task = worker.tasks.pollLast();
+	if (task != null)
+	    return task;
+
+	for (int i=1; i<workers.length; i++) {
+	    Worker victim = workers[(worker.index + i) % workers.length];
+	    task = victim.tasks.pollFirst();
+	    if (task != null) {
+		numSteals++;
+		return task;
+	    }
+	}
+
+	return null;
+    }
+
+    /**
+     * The body of each worker: run tasks until the executor is shut down and
+     * no tasks are left.
+     */
+    private void work(Worker worker) {
+	Machine.interrupt().disable();
+
+	while (true) {
+	    Task task = (numQueued > 0) ? take(worker) : null;
+	    numSearching--;
+
+	    if (task == null) {
+		if (shutdown)
+		    break;
+
+		numIdle++;
+		idleQueue.waitForAccess(worker.thread);
+		KThread.sleep();
+		// whoever woke us counted us as searching again
+		continue;
+	    }
+
+	    numQueued--;
+	    // another worker may be needed for the rest of the queue
+	    if (numQueued > 0 && numSearching == 0 && numIdle > 0)
+		wakeWorker();
+
+	    Machine.interrupt().enable();
+	    task.work.run();
+	    Machine.interrupt().disable();
+
+	    task.finish();
+	    numSearching++;
+	}
+
+	Machine.interrupt().enable();
+    }
+
+    /**
+     * A worker thread and its deque of tasks.
+     */
+    private class Worker {
+	Worker(final int index) {
+	    this.index = index;
+	    thread = new KThread(new Runnable() {
+		    public void run() {
+			work(Worker.this);
+		    }
+		}).setName("task worker " + index);
+	}
+
+	int index;
+	KThread thread;
+	ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+    }
+
+    /**
+     * A handle for a piece of work submitted to an executor.
+     */
+    public static class Task {
+	Task(Runnable work) {
+	    this.work = work;
+	}
+
+	/**
+	 * Wait until the work has run. Returns immediately if it already has.
+	 */
+	public void await() {
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    if (!done) {
+		if (waitQueue == null)
+		    waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+		waitQueue.waitForAccess(KThread.currentThread());
+		KThread.sleep();
+	    }
+
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test whether the work has run.
+	 *
+	 * @return	<tt>true</tt> if the work has run.
+	 */
+	public boolean isDone() {
+	    return done;
+	}
+
+	private void finish() {
+	    done = true;
+	    if (waitQueue != null)
+		waitQueue.readyAll();
+	}
+
+	private Runnable work;
+	private boolean done = false;
+	private ThreadQueue waitQueue = null;
+    }
+
+    /**
+     * Test that every task runs exactly once, that tasks submitted by tasks
+     * run, and that <tt>await()</tt> waits for its task.
+     */
+    public static void selfTest() {
+	final TaskExecutor executor = new TaskExecutor(4);
+	final int numTasks = 200;
+	final int[] runs = new int[numTasks];
+	final int[] children = new int[1];
+
+	Task[] tasks = new Task[numTasks];
+	for (int i=0; i<numTasks; i++) {
+	    final int id = i;
+	    tasks[i] = executor.submit(new Runnable() {
+		    public void run() {
+			runs[id]++;
+			if (id % 10 == 0) {
+			    executor.submit(new Runnable() {
+				    public void run() {
+					children[0]++;
+				    }
+				});
+			}
+			if (id % 7 == 0)
+			    ThreadedKernel.alarm.waitUntil(20);
+		    }
+		});
+	}
+
+	tasks[numTasks-1].await();
+	Lib.assertTrue(tasks[numTasks-1].isDone() && runs[numTasks-1] == 1);
+
+	for (int i=0; i<numTasks; i++)
+	    tasks[i].await();
+
+	executor.shutdown();
+
+	for (int i=0; i<numTasks; i++)
+	    Lib.assertTrue(runs[i] == 1);
+	Lib.assertTrue(children[0] == numTasks/10);
+    }
+
+    /**
+     * Compare running 100,000 tiny tasks on an executor with forking a thread
+     * for each of them.
+     */
+    public static void benchmark() {
+	final int numTasks = 100000, numWorkers = 4, batchSize = 100;
+	final int[] sum = new int[1];
+	Runnable work = new Runnable() {
+		public void run() {
+		    sum[0]++;
+		}
+	    };
+
+	for (int pass=0; pass<2; pass++) {
+	    boolean pooled = (pass == 1);
+	    sum[0] = 0;
+
+	    long startTicks = Machine.timer().getTime();
+	    long startSwitches = KThread.getNumContextSwitches();
+	    long startTime = System.nanoTime();
+	    long steals = 0;
+
+	    if (pooled) {
+		TaskExecutor executor = new TaskExecutor(numWorkers);
+		for (int i=0; i<numTasks; i++)
+		    executor.submit(work);
+		executor.shutdown();
+		steals = executor.numSteals;
+	    }
+	    else {
+		// fork in batches to stay under the TCB limit
+		KThread[] batch = new KThread[batchSize];
+		for (int i=0; i<numTasks; i+=batchSize) {
+		    for (int j=0; j<batchSize; j++)
+			(batch[j] = new KThread(work).setName("task")).fork();
+		    KThread.joinAll(batch);
+		}
+	    }
+
+	    long elapsed = System.nanoTime() - startTime;
+	    long ticks = Machine.timer().getTime() - startTicks;
+	    long switches = KThread.getNumContextSwitches() - startSwitches;
+
+	    Lib.assertTrue(sum[0] == numTasks);
+
+	    System.out.println(ThreadedKernel.scheduler.getClass().getName()
+			       + ": " + (pooled ? "TaskExecutor ("
+					 + numWorkers + " workers, "
+					 + steals + " steals)"
+					 : "KThread per task")
+			       + ", " + numTasks + " tasks, "
+			       + ticks + " ticks, "
+			       + (elapsed / numTasks) + " ns/task, "
+			       + switches + " context switches");
+	}
+    }
+
+    private Worker[] workers;
+    private int nextWorker = 0;
+    private boolean shutdown = false;
+
+    /** The number of tasks in all the deques. */
+    private int numQueued = 0;
+    /**
+     * The number of workers awake and looking for a task, counting those that
+     * have been woken but have not yet run.
+     */
+    private int numSearching;
+    private int numIdle = 0;
+    private long numSteals = 0;
+
+    private ThreadQueue idleQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+}
@@ -91,6 +91,59 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Make the specified thread the owner of this queue, while any waiting
+     * threads keep waiting, so that priority they transfer goes to it
+     * instead of the previous owner. This is for resources that several
+     * threads can hold at once, such as a read lock: when the holder
+     * receiving priority gives up access before the others, ownership moves
+     * to one of them.
+     *
+     * <p>
+     * This implementation does nothing, which is correct for queues that do
+     * not transfer priority.
+     *
+     * @param	thread	the new owner, or <tt>null</tt> to leave this queue
+     *			with no owner.
+     */
+    public void setOwner(KThread thread) {
+    }
+
+    /**
+     * Remove the specified thread from this queue, if it is waiting for
+     * access, without giving it access. This is used when a thread gives up
+     * waiting, for example because a timed wait has expired. Any priority the
+     * thread was transferring through this queue is taken back.
+     *
+     * @param	thread	the thread to remove.
+     * @return	<tt>true</tt> if the thread was waiting on this queue.
+     */
+    public abstract boolean remove(KThread thread);
+
+    /**
+     * Remove every thread waiting on this queue and make it ready to run. No
+     * thread receives access, and the queue is left with no owner, so any
+     * priority donated through it is taken back. Used to wake every thread
+     * sleeping on a condition variable.
+     *
+     * <p>
+     * This implementation calls <tt>nextThread()</tt> once per thread, which
+     * hands ownership from thread to thread, and then clears the owner with
+     * <tt>setOwner(null)</tt>. Schedulers whose <tt>nextThread()</tt> does
+     * per-call bookkeeping should override it to empty the queue in one
+     * pass.
+     *
+     * @return	the number of threads made ready.
+     */
+    public int readyAll() {
+	int count = 0;
+	for (KThread thread; (thread = nextThread()) != null; count++)
+	    thread.ready();
+
+	setOwner(null);
+	return count;
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
@@ -48,10 +48,48 @@ public class ThreadedKernel extends Kernel {
     public void selfTest() {
 	KThread.selfTest();
 	Semaphore.selfTest();
+	Alarm.selfTest();
+	Condition2.selfTest();
+	ReadWriteLock.selfTest();
+	Barrier.selfTest();
+	CountDownLatch.selfTest();
+	Phaser.selfTest();
+	LockProfile.selfTest();
+	SchedulerStats.selfTest();
 	SynchList.selfTest();
+	BoundedSynchList.selfTest();
+	Channel.selfTest();
+	TaskExecutor.selfTest();
+	Boat.selfTest();
+	LotteryScheduler.selfTest();
+	StrideScheduler.selfTest();
+	MLFQScheduler.selfTest();
+	CFSScheduler.selfTest();
+	EDFScheduler.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
+	    ElevatorHarness.selfTest();
 	}
+	if (Config.getBoolean("ThreadedKernel.benchmark", false)) {
+	    benchmark();
+	}
+    }
+
+    /**
+     * Run the performance benchmarks. These take much longer than the self
+     * tests, so they only run when <tt>ThreadedKernel.benchmark</tt> is set
+     * in <tt>nachos.conf</tt>.
+     */
+    public void benchmark() {
+	LotteryScheduler.benchmark();
+	MLFQScheduler.benchmark();
+	Alarm.benchmark();
+	CommunicatorBenchmark.benchmark();
+	ReadWriteLock.benchmark();
+	TaskExecutor.benchmark();
+	Boat.benchmark();
+	if (Machine.bank() != null)
+	    ElevatorHarness.benchmark();
     }
     
     /**
@@ -62,9 +100,15 @@ public class ThreadedKernel extends Kernel {
     }
 
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel. Never returns. If <tt>Kernel.stats</tt> is set
+     * in <tt>nachos.conf</tt>, the scheduler's statistics are printed first.
      */
     public void terminate() {
+	if (Config.getBoolean("Kernel.stats", false)) {
+	    scheduler.printStats();
+	    SchedulerStats.print();
+	}
+	LockProfile.printReport();
 	Machine.halt();
     }
 
@@ -79,6 +123,10 @@ public class ThreadedKernel extends Kernel {
     private static RoundRobinScheduler dummy1 = null;
     private static PriorityScheduler dummy2 = null;
     private static LotteryScheduler dummy3 = null;
+    private static StrideScheduler dummy8 = null;
+    private static MLFQScheduler dummy9 = null;
+    private static CFSScheduler dummy10 = null;
+    private static EDFScheduler dummy11 = null;
     private static Condition2 dummy4 = null;
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
@@ -0,0 +1,395 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that gives each thread a number of tickets, and transfers
+ * tickets through locks and joins. This is the ticket accounting shared by
+ * <tt>LotteryScheduler</tt> and <tt>StrideScheduler</tt>, which differ only
+ * in how a queue chooses among its waiting threads.
+ *
+ * <p>
+ * The owner of a queue that transfers priority holds its own tickets plus
+ * the effective tickets of every thread waiting on the queue. Unlike a
+ * priority scheduler, donated tickets add rather than taking the maximum.
+ * Each thread keeps its effective tickets up to date, and passes every
+ * change along the chain of owners it is donating to, so no thread's tickets
+ * are ever recomputed from scratch.
+ */
+public abstract class TicketScheduler extends PriorityScheduler {
+    /**
+     * Allocate a new ticket scheduler.
+     */
+    public TicketScheduler() {
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getTicketState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return (int) Math.min(getTicketState(thread).effective,
+			      Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getTicketState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Allocate the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to allocate.
+     * @return	the new scheduling state.
+     */
+    protected abstract TicketState newTicketState(KThread thread);
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected TicketState getTicketState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = newTicketState(thread);
+
+	return (TicketState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps the total effective tickets of its
+     * waiting threads, and passes them to its owner if it transfers
+     * priority. Subclasses keep the waiting threads in whatever structure
+     * suits their choice of the next thread.
+     */
+    protected abstract class TicketQueue extends ThreadQueue {
+	TicketQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getTicketState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getTicketState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (owner != null)
+		owner.release(this);
+
+	    TicketState next = pickNextThread();
+	    if (next == null)
+		return null;
+
+	    total -= next.effective;
+	    remove(next);
+	    next.waitingOn = null;
+	    next.acquire(this);
+
+	    return next.thread;
+	}
+
+	/**
+	 * Hand ownership to <i>thread</i>, moving the tickets donated through
+	 * this queue from the previous owner to it.
+	 */
+	public void setOwner(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (owner != null)
+		owner.release(this);
+	    if (thread != null)
+		getTicketState(thread).acquire(this);
+	}
+
+	/**
+	 * Remove a thread that gives up waiting, taking back the tickets it
+	 * was donating to the owner.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    TicketState state = getTicketState(thread);
+	    if (state.waitingOn != this)
+		return false;
+
+	    total -= state.effective;
+	    remove(state);
+	    state.waitingOn = null;
+
+	    if (transferPriority && owner != null)
+		owner.addEffective(-state.effective);
+
+	    return true;
+	}
+
+	/**
+	 * Ready every waiting thread, then clear the queue in one pass instead
+	 * of removing the threads one at a time.
+	 */
+	public int readyAll() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (owner != null)
+		owner.release(this);
+
+	    TicketState[] waiting = removeAll();
+	    total = 0;
+
+	    for (int i=0; i<waiting.length; i++) {
+		waiting[i].waitingOn = null;
+		waiting[i].thread.ready();
+	    }
+
+	    return waiting.length;
+	}
+
+	/**
+	 * Return the thread that <tt>nextThread()</tt> would return, without
+	 * modifying the state of this queue.
+	 *
+	 * @return	the next thread to dequeue, or <tt>null</tt> if no threads
+	 *		are waiting.
+	 */
+	protected abstract TicketState pickNextThread();
+
+	/**
+	 * Add a thread that has started waiting. Its effective tickets are
+	 * already counted in <tt>total</tt>.
+	 */
+	abstract void insert(TicketState state);
+
+	/**
+	 * Remove a waiting thread. Its effective tickets are already taken
+	 * out of <tt>total</tt>.
+	 */
+	abstract void remove(TicketState state);
+
+	/**
+	 * Note that the effective tickets of a waiting thread have changed by
+	 * <i>delta</i>.
+	 */
+	abstract void update(TicketState state, long delta);
+
+	/**
+	 * Remove every waiting thread, and return them.
+	 */
+	abstract TicketState[] removeAll();
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread holding the resource guarded by this queue. */
+	TicketState owner = null;
+	/** The sum of the effective tickets of all waiting threads. */
+	long total = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under a ticket scheduler: its own
+     * tickets, its effective tickets (its own plus every ticket donated to it
+     * through queues it owns), and the queue it is waiting on, if any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class TicketState {
+	/**
+	 * Allocate a new <tt>TicketState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public TicketState(KThread thread) {
+	    this.thread = thread;
+	    this.tickets = priorityDefault;
+	    this.effective = priorityDefault;
+	}
+
+	/**
+	 * Set the number of tickets held by the associated thread, passing the
+	 * change along to whoever it is donating to.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    long delta = tickets - this.tickets;
+	    this.tickets = tickets;
+	    addEffective(delta);
+	}
+
+	/**
+	 * Called when the associated thread is now waiting on
+	 * <i>waitQueue</i>. A thread cannot wait for a resource it holds, so
+	 * if it owns <i>waitQueue</i> it gives up ownership first.
+	 *
+	 * <p>
+	 * If the owner of <i>waitQueue</i> is itself waiting, through queues
+	 * that transfer tickets, on this thread, donating to it would send
+	 * the tickets round a cycle. The owner cannot really be holding the
+	 * resource: it is either the last thread woken from a queue it never
+	 * gave back, or deadlocked. Either way it loses ownership, so the
+	 * donation graph never has a cycle.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 *
+	 * @see	nachos.threads.ThreadQueue#waitForAccess
+	 */
+	public void waitForAccess(TicketQueue waitQueue) {
+	    Lib.assertTrue(waitingOn == null);
+
+	    if (waitQueue.owner == this)
+		release(waitQueue);
+
+	    if (waitQueue.transferPriority && waitQueue.owner != null &&
+		waitQueue.owner.isWaitingFor(this))
+		waitQueue.owner.release(waitQueue);
+
+	    waitingOn = waitQueue;
+	    waitQueue.total += effective;
+	    waitQueue.insert(this);
+
+	    if (waitQueue.transferPriority && waitQueue.owner != null)
+		waitQueue.owner.addEffective(effective);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <i>waitQueue</i>. If the queue transfers tickets, the
+	 * tickets of every thread still waiting on it now count towards this
+	 * thread.
+	 *
+	 * @see	nachos.threads.ThreadQueue#acquire
+	 * @see	nachos.threads.ThreadQueue#nextThread
+	 */
+	public void acquire(TicketQueue waitQueue) {
+	    if (waitQueue.owner != null)
+		waitQueue.owner.release(waitQueue);
+
+	    waitQueue.owner = this;
+	    if (waitQueue.transferPriority)
+		addEffective(waitQueue.total);
+	}
+
+	/**
+	 * Called when the associated thread no longer holds whatever is
+	 * guarded by <i>waitQueue</i>.
+	 */
+	void release(TicketQueue waitQueue) {
+	    Lib.assertTrue(waitQueue.owner == this);
+
+	    waitQueue.owner = null;
+	    if (waitQueue.transferPriority)
+		addEffective(-waitQueue.total);
+	}
+
+	/**
+	 * Return <tt>true</tt> if this thread is <i>state</i>, or is waiting
+	 * on it through a chain of queues that transfer tickets.
+	 */
+	boolean isWaitingFor(TicketState state) {
+	    for (TicketState s = this; s != null; s = s.waitingOn.owner) {
+		if (s == state)
+		    return true;
+		if (s.waitingOn == null || !s.waitingOn.transferPriority)
+		    return false;
+	    }
+	    return false;
+	}
+
+	/**
+	 * Change the effective tickets of this thread by <i>delta</i>, and
+	 * walk the chain of owners this thread is donating to, updating each
+	 * queue along the way.
+	 */
+	void addEffective(long delta) {
+	    TicketState state = this;
+
+	    while (delta != 0) {
+		state.effective += delta;
+
+		TicketQueue queue = state.waitingOn;
+		if (queue == null)
+		    break;
+
+		queue.total += delta;
+		queue.update(state, delta);
+
+		if (!queue.transferPriority || queue.owner == null ||
+		    queue.owner == state)
+		    break;
+
+		state = queue.owner;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The number of tickets held by the associated thread. */
+	protected int tickets;
+	/** The tickets held by the thread plus all tickets donated to it. */
+	protected long effective;
+	/** The queue the associated thread is waiting on, if any. */
+	protected TicketQueue waitingOn = null;
+    }
+}